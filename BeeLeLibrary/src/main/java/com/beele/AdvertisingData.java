@@ -0,0 +1,375 @@
+package com.beele;
+
+import java.util.UUID;
+
+/**
+ * AdvertisingData.java
+ * <p/>
+ * Reads the AD structures of the scanRecord passed to onLeScan in place. {@link #wrap(byte[])}
+ * walks the record once and only remembers where the known structures are, nothing is copied
+ * or allocated, so one instance can be reused for every advertisement of a scan:
+ * <pre>
+ * if (advertisingData.wrap(scanRecord).hasServiceUuid(HEART_RATE_SERVICE)) { ... }
+ * </pre>
+ * The values stay valid until the next wrap. Only the UUID and String getters allocate.
+ * <p/>
+ * Service UUIDs are handed out as the two halves of the 128 bit UUID, 16 and 32 bit UUIDs
+ * are expanded with the Bluetooth base UUID, so they compare with UUID.getMostSignificantBits()
+ * and getLeastSignificantBits() of the full UUID.
+ */
+public class AdvertisingData {
+
+    public final static int TYPE_FLAGS = 0x01;
+    public final static int TYPE_SERVICE_UUIDS_16_INCOMPLETE = 0x02;
+    public final static int TYPE_SERVICE_UUIDS_16_COMPLETE = 0x03;
+    public final static int TYPE_SERVICE_UUIDS_32_INCOMPLETE = 0x04;
+    public final static int TYPE_SERVICE_UUIDS_32_COMPLETE = 0x05;
+    public final static int TYPE_SERVICE_UUIDS_128_INCOMPLETE = 0x06;
+    public final static int TYPE_SERVICE_UUIDS_128_COMPLETE = 0x07;
+    public final static int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public final static int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public final static int TYPE_TX_POWER_LEVEL = 0x0A;
+    public final static int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+    // Returned by getTxPowerLevel() if the advertisement has none.
+    public final static int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+    // Service UUIDs remembered per advertisement, further ones are ignored.
+    public final static int MAX_SERVICE_UUIDS = 16;
+    // Manufacturer specific data structures remembered per advertisement, further ones are ignored.
+    public final static int MAX_MANUFACTURER_DATA = 4;
+
+    // 0000xxxx-0000-1000-8000-00805F9B34FB, the UUID of a 16 or 32 bit UUID xxxx.
+    private final static long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private final static long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805F9B34FBL;
+
+    private byte[] data;
+    private int flags;
+    private int txPowerLevel;
+    private int localNameOffset;
+    private int localNameLength;
+    private boolean localNameComplete;
+    // Offset and length of each manufacturer specific data structure, company identifier included.
+    private final int[] manufacturerOffsets = new int[MAX_MANUFACTURER_DATA];
+    private final int[] manufacturerLengths = new int[MAX_MANUFACTURER_DATA];
+    private int manufacturerCount;
+    // Offset and size (2, 4 or 16) of each service UUID.
+    private final int[] serviceUuidOffsets = new int[MAX_SERVICE_UUIDS];
+    private final int[] serviceUuidSizes = new int[MAX_SERVICE_UUIDS];
+    private int serviceUuidCount;
+    private boolean truncated;
+
+    /**
+     * Parses the whole scanRecord.
+     *
+     * @return this instance.
+     */
+    public AdvertisingData wrap(byte[] scanRecord) {
+        return wrap(scanRecord, 0, scanRecord == null ? 0 : scanRecord.length);
+    }
+
+    /**
+     * Parses the AD structures in {@code length} bytes of the array from {@code offset}.
+     * Parsing stops at a zero length structure, the padding that fills up a scanRecord, or at
+     * a structure that runs past the end, see {@link #isTruncated()}.
+     *
+     * @return this instance.
+     */
+    public AdvertisingData wrap(byte[] scanRecord, int offset, int length) {
+        data = scanRecord;
+        flags = -1;
+        txPowerLevel = TX_POWER_UNKNOWN;
+        localNameOffset = -1;
+        localNameLength = 0;
+        localNameComplete = false;
+        manufacturerCount = 0;
+        serviceUuidCount = 0;
+        truncated = false;
+        int end = offset + length;
+        while (offset < end) {
+            int structureLength = scanRecord[offset] & 0xFF;
+            if (structureLength == 0) {
+                break;
+            }
+            if (offset + 1 + structureLength > end) {
+                truncated = true;
+                break;
+            }
+            int type = scanRecord[offset + 1] & 0xFF;
+            int valueOffset = offset + 2;
+            int valueLength = structureLength - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (valueLength > 0) {
+                        flags = scanRecord[valueOffset] & 0xFF;
+                    }
+                    break;
+                case TYPE_SERVICE_UUIDS_16_INCOMPLETE:
+                case TYPE_SERVICE_UUIDS_16_COMPLETE:
+                    addServiceUuids(valueOffset, valueLength, 2);
+                    break;
+                case TYPE_SERVICE_UUIDS_32_INCOMPLETE:
+                case TYPE_SERVICE_UUIDS_32_COMPLETE:
+                    addServiceUuids(valueOffset, valueLength, 4);
+                    break;
+                case TYPE_SERVICE_UUIDS_128_INCOMPLETE:
+                case TYPE_SERVICE_UUIDS_128_COMPLETE:
+                    addServiceUuids(valueOffset, valueLength, 16);
+                    break;
+                case TYPE_LOCAL_NAME_SHORT:
+                case TYPE_LOCAL_NAME_COMPLETE:
+                    // The complete name wins over a shortened one.
+                    if (!localNameComplete) {
+                        localNameOffset = valueOffset;
+                        localNameLength = valueLength;
+                        localNameComplete = type == TYPE_LOCAL_NAME_COMPLETE;
+                    }
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (valueLength > 0) {
+                        txPowerLevel = scanRecord[valueOffset];
+                    }
+                    break;
+                case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    // The company identifier is required.
+                    if (manufacturerCount < MAX_MANUFACTURER_DATA && valueLength >= 2) {
+                        manufacturerOffsets[manufacturerCount] = valueOffset;
+                        manufacturerLengths[manufacturerCount] = valueLength;
+                        manufacturerCount++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset += 1 + structureLength;
+        }
+        return this;
+    }
+
+    private void addServiceUuids(int offset, int length, int size) {
+        for (int end = offset + length; offset + size <= end && serviceUuidCount < MAX_SERVICE_UUIDS; offset += size) {
+            serviceUuidOffsets[serviceUuidCount] = offset;
+            serviceUuidSizes[serviceUuidCount] = size;
+            serviceUuidCount++;
+        }
+    }
+
+    /**
+     * @return the array that was wrapped, the offsets of the getters refer to it.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return true if a structure ran past the end of the record, the ones before it were read.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the Flags structure, -1 if the advertisement has none.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return the TX power level in dBm, TX_POWER_UNKNOWN if the advertisement has none.
+     */
+    public int getTxPowerLevel() {
+        return txPowerLevel;
+    }
+
+    //---------------------------------------------- Service UUIDs --------------------------------------------------------------//
+
+    public int getServiceUuidCount() {
+        return serviceUuidCount;
+    }
+
+    public long getServiceUuidMostSignificantBits(int index) {
+        checkServiceUuid(index);
+        int offset = serviceUuidOffsets[index];
+        int size = serviceUuidSizes[index];
+        if (size == 16) {
+            return getLong(offset + 8);
+        }
+        long shortUuid = size == 2 ? getUnsigned(offset, 2) : getUnsigned(offset, 4);
+        return BASE_UUID_MOST_SIGNIFICANT_BITS | shortUuid << 32;
+    }
+
+    public long getServiceUuidLeastSignificantBits(int index) {
+        checkServiceUuid(index);
+        if (serviceUuidSizes[index] == 16) {
+            return getLong(serviceUuidOffsets[index]);
+        }
+        return BASE_UUID_LEAST_SIGNIFICANT_BITS;
+    }
+
+    /**
+     * @return the service UUID, allocates.
+     */
+    public UUID getServiceUuid(int index) {
+        return new UUID(getServiceUuidMostSignificantBits(index), getServiceUuidLeastSignificantBits(index));
+    }
+
+    public boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @return true if the advertisement lists the service, given as the halves of its UUID.
+     */
+    public boolean hasServiceUuid(long mostSignificantBits, long leastSignificantBits) {
+        for (int i = 0; i < serviceUuidCount; i++) {
+            if (getServiceUuidMostSignificantBits(i) == mostSignificantBits
+                    && getServiceUuidLeastSignificantBits(i) == leastSignificantBits) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkServiceUuid(int index) {
+        if (index < 0 || index >= serviceUuidCount) {
+            throw new IndexOutOfBoundsException("Index " + index + ", service UUIDs " + serviceUuidCount);
+        }
+    }
+
+    //---------------------------------------------- Manufacturer data --------------------------------------------------------------//
+
+    public boolean hasManufacturerData() {
+        return manufacturerCount > 0;
+    }
+
+    /**
+     * @return the number of manufacturer specific data structures, e.g. of several companies.
+     */
+    public int getManufacturerDataCount() {
+        return manufacturerCount;
+    }
+
+    /**
+     * @return true if the advertisement has manufacturer specific data of the company.
+     */
+    public boolean hasManufacturerId(int manufacturerId) {
+        for (int i = 0; i < manufacturerCount; i++) {
+            if (getManufacturerId(i) == manufacturerId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the company identifier of the first manufacturer specific data, -1 if there is none.
+     */
+    public int getManufacturerId() {
+        return manufacturerCount == 0 ? -1 : getManufacturerId(0);
+    }
+
+    /**
+     * @return where the first manufacturer specific data after the company identifier starts in getData().
+     */
+    public int getManufacturerDataOffset() {
+        return manufacturerCount == 0 ? -1 : getManufacturerDataOffset(0);
+    }
+
+    /**
+     * @return the length of the first manufacturer specific data after the company identifier.
+     */
+    public int getManufacturerDataLength() {
+        return manufacturerCount == 0 ? 0 : getManufacturerDataLength(0);
+    }
+
+    public int getManufacturerId(int index) {
+        checkManufacturerData(index);
+        return (int) getUnsigned(manufacturerOffsets[index], 2);
+    }
+
+    public int getManufacturerDataOffset(int index) {
+        checkManufacturerData(index);
+        return manufacturerOffsets[index] + 2;
+    }
+
+    public int getManufacturerDataLength(int index) {
+        checkManufacturerData(index);
+        return manufacturerLengths[index] - 2;
+    }
+
+    private void checkManufacturerData(int index) {
+        if (index < 0 || index >= manufacturerCount) {
+            throw new IndexOutOfBoundsException("Index " + index + ", manufacturer data " + manufacturerCount);
+        }
+    }
+
+    //---------------------------------------------- Local name --------------------------------------------------------------//
+
+    public boolean hasLocalName() {
+        return localNameOffset >= 0;
+    }
+
+    /**
+     * @return false if the name is the shortened one.
+     */
+    public boolean isLocalNameComplete() {
+        return localNameComplete;
+    }
+
+    public int getLocalNameOffset() {
+        return localNameOffset;
+    }
+
+    public int getLocalNameLength() {
+        return localNameLength;
+    }
+
+    /**
+     * Appends the local name to the StringBuilder.
+     *
+     * @return the StringBuilder.
+     */
+    public StringBuilder getLocalName(StringBuilder out) {
+        if (localNameOffset >= 0) {
+            GattCodec.getUtf8(data, localNameOffset, localNameLength, out);
+        }
+        return out;
+    }
+
+    /**
+     * @return the local name, null if the advertisement has none. Allocates.
+     */
+    public String getLocalName() {
+        return localNameOffset < 0 ? null : getLocalName(new StringBuilder(localNameLength)).toString();
+    }
+
+    /**
+     * Compares the local name with a UTF-8 encoded name without decoding it.
+     *
+     * @param prefix true to match names that start with the given one.
+     */
+    public boolean matchesLocalName(byte[] utf8Name, boolean prefix) {
+        if (localNameOffset < 0 || localNameLength < utf8Name.length
+                || !prefix && localNameLength != utf8Name.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8Name.length; i++) {
+            if (data[localNameOffset + i] != utf8Name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Little endian, as on the air.
+    private long getUnsigned(int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = value << 8 | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private long getLong(int offset) {
+        return getUnsigned(offset, 8);
+    }
+}
@@ -5,11 +5,13 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 
-import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -22,18 +24,70 @@ import java.util.UUID;
 public class BluetoothLe {
 
     private static UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-    private ProcessQueueExecutor processQueueExecutor = new ProcessQueueExecutor();
+    // Indicated by the device when its attribute layout changed.
+    private static UUID SERVICE_CHANGED = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+    private static UUID GENERIC_ATTRIBUTE = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    // Most stacks allow 7 GATT clients, one is left for other apps.
+    public final static int MAX_CONNECTIONS = 6;
     // To add and maintain the BluetoothGatt object of each BLE device.
-    private HashMap<String, BluetoothGatt> bluetoothGattHashMap = new HashMap<>();
+    private final GattConnectionPool connectionPool = new GattConnectionPool(MAX_CONNECTIONS);
+    // Limits how many devices are being connected at once.
+    private final ConnectScheduler connectScheduler = new ConnectScheduler(this);
+    // Notification handlers of each characteristic.
+    private final SubscriptionRegistry subscriptionRegistry = new SubscriptionRegistry();
+    // Calls the notification handlers off the Binder thread. Characteristics without handlers
+    // go to the listener on the Binder thread, while the characteristic still carries their value.
+    private final NotificationDispatcher notificationDispatcher = new NotificationDispatcher(new NotificationDispatcher.Consumer() {
+        @Override
+        public void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp) {
+            // Dropped if the last handler was removed since the notification arrived.
+            subscriptionRegistry.dispatch(gatt, characteristic, value, timestamp);
+        }
+    });
+    // Connection state of each device, reconnects devices that lost the link.
+    private final ConnectionSupervisor connectionSupervisor = new ConnectionSupervisor(this);
     private BluetoothLeListener mBluetoothLeListener;
+    private boolean closed;
+    // Reports requests that failed for good to the BluetoothLeListener.
+    private ProcessQueueExecutor.ProcessFailureListener mProcessFailureListener = new ProcessQueueExecutor.ProcessFailureListener() {
+        @Override
+        public void onProcessFailed(ReadWriteCharacteristic readWriteCharacteristic, int status) {
+            mBluetoothLeListener.onError("Request " + readWriteCharacteristic.getRequestType() + " failed for "
+                    + readWriteCharacteristic.getBluetoothGatt().getDevice().getAddress() + " with status " + status);
+        }
+    };
     private BluetoothManager mBluetoothManager;
     private Context context;
+    // Values of characteristics with a time to live, answered without using the link.
+    private final CharacteristicCache characteristicCache = new CharacteristicCache();
+    // Discovered attribute layout of each device, kept across restarts.
+    private final ServiceLayoutCache serviceLayoutCache;
     // The connection status of the Blue tooth Low energy Device will be
     // notified in the below callback.
     private BluetoothGattCallback mGattCallbacks = new BluetoothGattCallback() {
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                String address = gatt.getDevice().getAddress();
+                long storedHash = serviceLayoutCache.getLayoutHash(address);
+                if (serviceLayoutCache.update(address, gatt.getServices()) && storedHash != 0) {
+                    // Answered from a stack cache that does not match the stored layout, the
+                    // device may have changed without telling. Discover once more after a refresh.
+                    serviceLayoutCache.markStale(address);
+                    if (!startDiscovery(gatt)) {
+                        mBluetoothLeListener.onServicesDiscovered(gatt, BluetoothGatt.GATT_FAILURE);
+                    }
+                    return;
+                }
+            }
+            connectionSupervisor.onServicesDiscovered(gatt, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                enableServiceChanged(gatt);
+                restoreSubscriptions(gatt);
+                // Requests queued while the device was reconnecting go out on the new gatt.
+                ProcessQueueExecutor.resumeProcess(gatt);
+            }
             mBluetoothLeListener.onServicesDiscovered(gatt, status);
         }
 
@@ -44,33 +98,74 @@ public class BluetoothLe {
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            mBluetoothLeListener.onCharacteristicChanged(gatt, characteristic);
+            if (SERVICE_CHANGED.equals(characteristic.getUuid())) {
+                // The stored layout and every value read through it can no longer be trusted.
+                serviceLayoutCache.markStale(gatt.getDevice().getAddress());
+                characteristicCache.invalidate(gatt.getDevice().getAddress());
+                discoverServices(gatt);
+            }
+            String address = gatt.getDevice().getAddress();
+            characteristicCache.put(address, getServiceUuid(characteristic), characteristic.getUuid(), characteristic.getValue());
+            boolean handled = subscriptionRegistry.getReferenceCount(address, characteristic.getUuid()) > 0;
+            if (handled) {
+                // Copied, so the listener below may keep using the characteristic.
+                notificationDispatcher.offer(gatt, characteristic, characteristic.getValue());
+            }
+            // Service Changed is enabled by the library, the listener only hears it if it asked to.
+            boolean unclaimed = !handled && !SERVICE_CHANGED.equals(characteristic.getUuid());
+            if (unclaimed || subscriptionRegistry.isListenerSubscribed(address, characteristic.getUuid())) {
+                // Listeners read getValue(), which the next notification overwrites, so they
+                // are called right away as before, also when handlers share the subscription.
+                mBluetoothLeListener.onCharacteristicChanged(gatt, characteristic);
+            }
         }
 
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            // A gatt that was already closed or replaced does not change the supervised state.
+            boolean current = gatt == connectionPool.getGatt(gatt.getDevice().getAddress());
+            if (current && (newState == BluetoothProfile.STATE_CONNECTED || newState == BluetoothProfile.STATE_DISCONNECTED)) {
+                connectScheduler.onAttemptFinished(gatt.getDevice().getAddress());
+            }
+            if (current && newState == BluetoothProfile.STATE_CONNECTED) {
+                if (connectionSupervisor.onConnected(gatt)) {
+                    discoverServices(gatt);
+                }
+            } else if (current && newState == BluetoothProfile.STATE_DISCONNECTED) {
+                connectionSupervisor.onDisconnected(gatt);
+            }
             mBluetoothLeListener.onConnectionStateChange(gatt, status, newState);
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                characteristicCache.put(gatt.getDevice().getAddress(), getServiceUuid(characteristic), characteristic.getUuid(), characteristic.getValue());
+            }
             mBluetoothLeListener.onCharacteristicRead(gatt, characteristic, status);
+            ProcessQueueExecutor.onProcessComplete(gatt, characteristic, characteristic.getValue(), status);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                characteristicCache.put(gatt.getDevice().getAddress(), getServiceUuid(characteristic), characteristic.getUuid(), characteristic.getValue());
+            }
             mBluetoothLeListener.onCharacteristicWrite(gatt, characteristic, status);
+            ProcessQueueExecutor.onProcessComplete(gatt, characteristic, characteristic.getValue(), status);
         }
 
         @Override
         public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             mBluetoothLeListener.onDescriptorRead(gatt, descriptor, status);
+            ProcessQueueExecutor.onProcessComplete(gatt, descriptor, descriptor.getValue(), status);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             mBluetoothLeListener.onDescriptorWrite(gatt, descriptor, status);
+            ProcessQueueExecutor.onProcessComplete(gatt, descriptor, descriptor.getValue(), status);
         }
 
     };
@@ -79,12 +174,143 @@ public class BluetoothLe {
         mBluetoothLeListener = callback;
         this.mBluetoothManager = mBluetoothManager;
         this.context = context;
+        this.serviceLayoutCache = new ServiceLayoutCache(context);
+        notificationDispatcher.setOverrunListener(new NotificationDispatcher.OverrunListener() {
+            @Override
+            public void onOverrun(int dropped) {
+                mBluetoothLeListener.onError(dropped + " notifications dropped, the consumers are too slow");
+            }
+        });
+        connectionPool.setEvictionListener(new GattConnectionPool.EvictionListener() {
+            @Override
+            public void onEvicted(String deviceAddress) {
+                connectionSupervisor.onEvicted(deviceAddress);
+            }
+        });
+        // The threads are shared with the other instances, close() gives them back.
+        SharedScheduler.acquire();
+    }
+
+    /**
+     * Returns the cache of characteristic values. Set a time to live for the characteristics
+     * that should be answered from it.
+     *
+     * @return the CharacteristicCache of this instance.
+     */
+    public CharacteristicCache getCharacteristicCache() {
+        return characteristicCache;
+    }
+
+    /**
+     * Returns the pool of open connections, e.g. to change how many may be open at once.
+     *
+     * @return the GattConnectionPool of this instance.
+     */
+    public GattConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Returns the scheduler of connection attempts, e.g. to check whether a device still waits
+     * for its turn.
+     *
+     * @return the ConnectScheduler of this instance.
+     */
+    public ConnectScheduler getConnectScheduler() {
+        return connectScheduler;
+    }
+
+    /**
+     * Returns the notification handlers of the characteristics.
+     *
+     * @return the SubscriptionRegistry of this instance.
+     */
+    public SubscriptionRegistry getSubscriptionRegistry() {
+        return subscriptionRegistry;
+    }
+
+    /**
+     * Returns the dispatcher of notifications, e.g. to call the consumers on another executor.
+     *
+     * @return the NotificationDispatcher of this instance.
+     */
+    public NotificationDispatcher getNotificationDispatcher() {
+        return notificationDispatcher;
+    }
+
+    /**
+     * Returns the connection state of the devices, see the ConnectionSupervisor.STATE_* constants.
+     *
+     * @return the ConnectionSupervisor of this instance.
+     */
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return connectionSupervisor;
+    }
+
+    /**
+     * Returns the stored attribute layouts, e.g. to check which services a device has before
+     * its discovery finished.
+     *
+     * @return the ServiceLayoutCache of this instance.
+     */
+    public ServiceLayoutCache getServiceLayoutCache() {
+        return serviceLayoutCache;
+    }
+
+    /**
+     * Starts the service discovery. Known devices are answered from the attribute cache of the
+     * Bluetooth stack. That cache is only refreshed, at the cost of a full discovery, after a
+     * Service Changed indication or when a discovery did not match the stored layout. The result
+     * arrives in onServicesDiscovered.
+     *
+     * @param mGatt BluetoothGatt object of the device.
+     * @return true if the discovery was started or is already running.
+     */
+    public boolean discoverServices(final BluetoothGatt mGatt) {
+        String address = mGatt.getDevice().getAddress();
+        if (!connectionSupervisor.onDiscovering(address)) {
+            return true;
+        }
+        if (serviceLayoutCache.isLoaded(address)) {
+            return startDiscovery(mGatt);
+        }
+        // The stored layout is read on the file thread first, the discovery starts from there.
+        serviceLayoutCache.load(address, new Runnable() {
+            @Override
+            public void run() {
+                startDiscovery(mGatt);
+            }
+        });
+        return true;
+    }
+
+    private boolean startDiscovery(BluetoothGatt mGatt) {
+        if (serviceLayoutCache.isRefreshRequired(mGatt.getDevice().getAddress())) {
+            refreshGatt(mGatt);
+        }
+        if (!mGatt.discoverServices()) {
+            connectionSupervisor.onServicesDiscovered(mGatt, BluetoothGatt.GATT_FAILURE);
+            return false;
+        }
+        return true;
+    }
 
-        if (!processQueueExecutor.isAlive()) {
-            processQueueExecutor.start();
+    // BluetoothGatt.refresh() is hidden, it clears the attribute cache of the stack.
+    private static boolean refreshGatt(BluetoothGatt mGatt) {
+        try {
+            Method refresh = mGatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(mGatt);
+        } catch (Exception e) {
+            return false;
         }
     }
 
+    // The cache tells the same characteristic in two services apart.
+    private static UUID getServiceUuid(BluetoothGattCharacteristic characteristic) {
+        BluetoothGattService service = characteristic.getService();
+        return service != null ? service.getUuid() : null;
+    }
+
     //---------------------------------------------- Read / Write / Set Notification Functions --------------------------------------------------------------//
 
     /**
@@ -94,8 +320,31 @@ public class BluetoothLe {
      * @param characteristic BluetoothGattCharacteristic of the device.
      */
     public void readCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic) {
-        ReadWriteCharacteristic readWriteCharacteristic = new ReadWriteCharacteristic(ProcessQueueExecutor.REQUEST_TYPE_READ_CHAR, mGatt, characteristic);
-        ProcessQueueExecutor.addProcess(readWriteCharacteristic);
+        readCharacteristic(mGatt, characteristic, ProcessQueueExecutor.PRIORITY_NORMAL);
+    }
+
+    /**
+     * To read the value from the BLE Device. If the CharacteristicCache holds a fresh value, it
+     * is set on the characteristic and onCharacteristicRead is called right away on the calling
+     * thread instead of the callback thread, without using the link. Otherwise the read is
+     * queued as usual. A queued write to the characteristic drops its cached value, so a cache
+     * hit never overwrites a value that is about to be written.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic BluetoothGattCharacteristic of the device.
+     * @param priority       one of the ProcessQueueExecutor.PRIORITY_* constants.
+     */
+    public void readCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, int priority) {
+        byte[] cachedValue = characteristicCache.get(mGatt.getDevice().getAddress(), getServiceUuid(characteristic), characteristic.getUuid());
+        if (cachedValue != null) {
+            // The listener reads the value from the characteristic, the cache keeps its own array.
+            characteristic.setValue(cachedValue.clone());
+            mBluetoothLeListener.onCharacteristicRead(mGatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+            return;
+        }
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_READ_CHAR, mGatt, characteristic);
+        readWriteCharacteristic.setPriority(priority);
+        addProcess(readWriteCharacteristic);
     }
 
     /**
@@ -106,43 +355,268 @@ public class BluetoothLe {
      * @param b              value to write on to the BLE device.
      */
     public void writeCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, byte[] b) {
-        characteristic.setValue(b);
-        ReadWriteCharacteristic readWriteCharacteristic = new ReadWriteCharacteristic(ProcessQueueExecutor.REQUEST_TYPE_WRITE_CHAR, mGatt, characteristic);
-        ProcessQueueExecutor.addProcess(readWriteCharacteristic);
+        writeCharacteristic(mGatt, characteristic, b, true);
     }
 
     /**
-     * To read the descriptor value from the BLE Device
+     * To write the value to BLE Device
      *
      * @param mGatt          BluetoothGatt object of the device.
      * @param characteristic BluetoothGattCharacteristic of the device.
+     * @param b              value to write on to the BLE device.
+     * @param coalesce       false for commands that must be sent even if a newer write to the
+     *                       same characteristic is queued behind them.
      */
-    public void readDescriptor(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic) {
-        ReadWriteCharacteristic readWriteCharacteristic = new ReadWriteCharacteristic(ProcessQueueExecutor.REQUEST_TYPE_READ_DESCRIPTOR, mGatt, characteristic);
-        ProcessQueueExecutor.addProcess(readWriteCharacteristic);
+    public void writeCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, byte[] b, boolean coalesce) {
+        writeCharacteristic(mGatt, characteristic, b, coalesce, ProcessQueueExecutor.PRIORITY_NORMAL);
     }
 
     /**
-     * To write the descriptor value to BLE Device
+     * To write the value to BLE Device
      *
      * @param mGatt          BluetoothGatt object of the device.
      * @param characteristic BluetoothGattCharacteristic of the device.
      * @param b              value to write on to the BLE device.
+     * @param coalesce       false for commands that must be sent even if a newer write to the
+     *                       same characteristic is queued behind them.
+     * @param priority       one of the ProcessQueueExecutor.PRIORITY_* constants.
      */
-    public void writeDescriptor(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, byte[] b) {
-        characteristic.setValue(b);
-        ReadWriteCharacteristic readWriteCharacteristic = new ReadWriteCharacteristic(ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR, mGatt, characteristic);
-        ProcessQueueExecutor.addProcess(readWriteCharacteristic);
+    public void writeCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, byte[] b, boolean coalesce, int priority) {
+        writeCharacteristic(mGatt, characteristic, PooledValue.copyOf(b), coalesce, priority);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * To write a pooled value to BLE Device. The write takes over the reference of the caller
+     * and releases the value once it is finished. The value stays in the pool while it is
+     * queued and is copied once when it is sent.
      *
-     * @param characteristic Characteristic to act on.
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic BluetoothGattCharacteristic of the device.
+     * @param value          value to write on to the BLE device, e.g. from PooledValue.obtain().
+     * @param coalesce       false for commands that must be sent even if a newer write to the
+     *                       same characteristic is queued behind them.
+     * @param priority       one of the ProcessQueueExecutor.PRIORITY_* constants.
+     */
+    public void writeCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, PooledValue value, boolean coalesce, int priority) {
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_WRITE_CHAR, mGatt, characteristic);
+        readWriteCharacteristic.setValue(value);
+        readWriteCharacteristic.setCoalescable(coalesce);
+        readWriteCharacteristic.setPriority(priority);
+        addProcess(readWriteCharacteristic);
+    }
+
+    /**
+     * To read the value from the BLE Device without going through BluetoothLeListener. A fresh
+     * value from the CharacteristicCache completes the future right away.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic BluetoothGattCharacteristic of the device.
+     * @param callback       told the value bytes and GATT status, may be null.
+     * @return future completed with the value bytes and GATT status.
+     */
+    public GattFuture readCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, GattFuture.Callback callback) {
+        byte[] cachedValue = characteristicCache.get(mGatt.getDevice().getAddress(), getServiceUuid(characteristic), characteristic.getUuid());
+        if (cachedValue != null) {
+            GattFuture gattFuture = new GattFuture();
+            if (callback != null) {
+                gattFuture.addCallback(callback);
+            }
+            // The cache shares its array with every reader, the caller gets its own.
+            gattFuture.complete(cachedValue.clone(), BluetoothGatt.GATT_SUCCESS);
+            return gattFuture;
+        }
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_READ_CHAR, mGatt, characteristic);
+        return addProcess(readWriteCharacteristic, callback);
+    }
+
+    /**
+     * To read the value from the BLE Device as a PooledValue, which goes back to its pool when
+     * the handler returns. A fresh value from the CharacteristicCache is handed over right away.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic BluetoothGattCharacteristic of the device.
+     * @param handler        told the value, not called if the read failed.
+     * @return future completed with the GATT status.
+     */
+    public GattFuture readCharacteristic(final BluetoothGatt mGatt, final BluetoothGattCharacteristic characteristic,
+                                         final PooledValue.ValueHandler handler) {
+        return readCharacteristic(mGatt, characteristic, new GattFuture.Callback() {
+            @Override
+            public void onResult(byte[] value, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS || value == null) {
+                    return;
+                }
+                PooledValue pooledValue = PooledValue.copyOf(value);
+                try {
+                    handler.onValue(mGatt, characteristic, pooledValue);
+                } finally {
+                    pooledValue.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * To write the value to BLE Device without going through BluetoothLeListener.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic BluetoothGattCharacteristic of the device.
+     * @param b              value to write on to the BLE device, copied so the array can be reused.
+     * @param callback       told the GATT status, may be null.
+     * @return future completed with the GATT status, its value is null.
+     */
+    public GattFuture writeCharacteristic(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, byte[] b, GattFuture.Callback callback) {
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_WRITE_CHAR, mGatt, characteristic);
+        readWriteCharacteristic.setValue(PooledValue.copyOf(b));
+        return addProcess(readWriteCharacteristic, callback);
+    }
+
+    /**
+     * To read the descriptor value from the BLE Device
+     *
+     * @param mGatt      BluetoothGatt object of the device.
+     * @param descriptor BluetoothGattDescriptor of the device.
+     */
+    public void readDescriptor(BluetoothGatt mGatt, BluetoothGattDescriptor descriptor) {
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_READ_DESCRIPTOR, mGatt, descriptor);
+        addProcess(readWriteCharacteristic);
+    }
+
+    /**
+     * To write the descriptor value to BLE Device
+     *
+     * @param mGatt      BluetoothGatt object of the device.
+     * @param descriptor BluetoothGattDescriptor of the device.
+     * @param b          value to write on to the BLE device, copied so the array can be reused.
+     */
+    public void writeDescriptor(BluetoothGatt mGatt, BluetoothGattDescriptor descriptor, byte[] b) {
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR, mGatt, descriptor);
+        readWriteCharacteristic.setValue(PooledValue.copyOf(b));
+        addProcess(readWriteCharacteristic);
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic for the BluetoothLeListener.
+     * It shares the subscription with the notification handlers of the characteristic, so
+     * disabling it does not stop the notifications while handlers are subscribed.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
      * @param characteristic Characteristic to act on.
      * @param enabled        If true, enable notification. False otherwise.
      */
     public void setCharacteristicNotification(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, boolean enabled) {
+        if (subscriptionRegistry.setListenerSubscribed(mGatt.getDevice().getAddress(), characteristic.getUuid(), enabled)) {
+            writeClientConfig(mGatt, characteristic, enabled);
+        }
+    }
+
+    /**
+     * Subscribes a handler to the notifications of a characteristic, it is called for the
+     * notifications of this characteristic only. Handlers of the same characteristic share one
+     * subscription, the notification is enabled on the device for the first one.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic Characteristic to act on.
+     * @param handler        called on the executor of the NotificationDispatcher with every notification.
+     */
+    public void setCharacteristicNotification(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic,
+                                              SubscriptionRegistry.NotificationHandler handler) {
+        if (subscriptionRegistry.add(mGatt.getDevice().getAddress(), characteristic.getUuid(), handler)) {
+            writeClientConfig(mGatt, characteristic, true);
+        }
+    }
+
+    /**
+     * Subscribes a handler to the notifications of a characteristic, like the NotificationHandler
+     * variant but without copying: the value is a PooledValue that goes back to its pool when
+     * the handler returns.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic Characteristic to act on.
+     * @param handler        called on the executor of the NotificationDispatcher with every notification.
+     */
+    public void setCharacteristicNotification(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic,
+                                              PooledValue.ValueHandler handler) {
+        if (subscriptionRegistry.add(mGatt.getDevice().getAddress(), characteristic.getUuid(), handler)) {
+            writeClientConfig(mGatt, characteristic, true);
+        }
+    }
+
+    /**
+     * Unsubscribes a handler added with setCharacteristicNotification.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic Characteristic to act on.
+     * @param handler        the handler to remove.
+     */
+    public void removeCharacteristicNotification(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic,
+                                                 PooledValue.ValueHandler handler) {
+        if (subscriptionRegistry.remove(mGatt.getDevice().getAddress(), characteristic.getUuid(), handler)) {
+            writeClientConfig(mGatt, characteristic, false);
+        }
+    }
+
+    /**
+     * Subscribes a handler to batches of the notifications of a characteristic, for sensors
+     * that notify too often to handle every notification on its own. A batch is delivered once
+     * it holds batchSize notifications or batchWindow milliseconds after its first one.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic Characteristic to act on.
+     * @param batchHandler   called on the executor of the NotificationDispatcher with every batch.
+     * @param batchSize      notifications per batch.
+     * @param batchWindow    longest time a notification waits in a batch, 0 to wait until it is full.
+     * @return the handler to pass to removeCharacteristicNotification.
+     */
+    public SubscriptionRegistry.NotificationHandler setCharacteristicNotification(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic,
+                                                                                  NotificationBatch.BatchHandler batchHandler, int batchSize, long batchWindow) {
+        NotificationBatcher notificationBatcher = new NotificationBatcher(batchHandler, notificationDispatcher, batchSize, batchWindow);
+        setCharacteristicNotification(mGatt, characteristic, notificationBatcher);
+        return notificationBatcher;
+    }
+
+    /**
+     * Unsubscribes a handler added with setCharacteristicNotification, the notification is
+     * disabled on the device once the last handler of the characteristic is removed.
+     *
+     * @param mGatt          BluetoothGatt object of the device.
+     * @param characteristic Characteristic to act on.
+     * @param handler        the handler to remove.
+     */
+    public void removeCharacteristicNotification(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic,
+                                                 SubscriptionRegistry.NotificationHandler handler) {
+        if (subscriptionRegistry.remove(mGatt.getDevice().getAddress(), characteristic.getUuid(), handler)) {
+            writeClientConfig(mGatt, characteristic, false);
+        }
+        if (handler instanceof NotificationBatcher) {
+            // Deliver what is left of the last batch.
+            ((NotificationBatcher) handler).flush(-1);
+        }
+    }
+
+    // Subscriptions do not survive a new connection, enable them again on the device.
+    private void restoreSubscriptions(BluetoothGatt mGatt) {
+        for (UUID characteristicUuid : subscriptionRegistry.getSubscribedCharacteristics(mGatt.getDevice().getAddress())) {
+            for (BluetoothGattService service : mGatt.getServices()) {
+                BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
+                if (characteristic != null) {
+                    writeClientConfig(mGatt, characteristic, true);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Lets the device tell about a changed layout, it indicates Service Changed when it does.
+    private void enableServiceChanged(BluetoothGatt mGatt) {
+        BluetoothGattService service = mGatt.getService(GENERIC_ATTRIBUTE);
+        BluetoothGattCharacteristic characteristic = service == null ? null : service.getCharacteristic(SERVICE_CHANGED);
+        if (characteristic != null && !subscriptionRegistry.getSubscribedCharacteristics(mGatt.getDevice().getAddress()).contains(SERVICE_CHANGED)) {
+            writeClientConfig(mGatt, characteristic, true);
+        }
+    }
+
+    private void writeClientConfig(BluetoothGatt mGatt, BluetoothGattCharacteristic characteristic, boolean enabled) {
         if (!mGatt.setCharacteristicNotification(characteristic, enabled)) {
             return;
         }
@@ -150,28 +624,96 @@ public class BluetoothLe {
         if (clientConfig == null) {
             return;
         }
-        clientConfig.setValue(enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-        ReadWriteCharacteristic readWriteCharacteristic = new ReadWriteCharacteristic(ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR, mGatt, clientConfig);
-        ProcessQueueExecutor.addProcess(readWriteCharacteristic);
+        byte[] value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        if (enabled) {
+            // Characteristics like Service Changed can only indicate.
+            boolean indicateOnly = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0
+                    && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
+            value = indicateOnly ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        ReadWriteCharacteristic readWriteCharacteristic = ReadWriteCharacteristic.obtain(ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR, mGatt, clientConfig);
+        readWriteCharacteristic.setValue(value);
+        // Notifications are usually set up right after discovery, ahead of any polling.
+        readWriteCharacteristic.setPriority(ProcessQueueExecutor.PRIORITY_HIGH);
+        addProcess(readWriteCharacteristic);
+    }
+
+    /**
+     * Queues a request built by the caller, e.g. with its own priority, timeout or retry count.
+     * A request from ReadWriteCharacteristic.obtain() goes back to the pool once it is finished.
+     *
+     * @param readWriteCharacteristic the request.
+     * @param callback                told the value bytes and GATT status, may be null.
+     * @return future completed with the value bytes and GATT status.
+     */
+    public GattFuture addProcess(ReadWriteCharacteristic readWriteCharacteristic, GattFuture.Callback callback) {
+        GattFuture gattFuture = new GattFuture();
+        if (callback != null) {
+            gattFuture.addCallback(callback);
+        }
+        readWriteCharacteristic.setFuture(gattFuture);
+        addProcess(readWriteCharacteristic);
+        return gattFuture;
+    }
+
+    private void addProcess(ReadWriteCharacteristic readWriteCharacteristic) {
+        if (readWriteCharacteristic.getFailureListener() == null) {
+            readWriteCharacteristic.setFailureListener(mProcessFailureListener);
+        }
+        String address = readWriteCharacteristic.getBluetoothGatt().getDevice().getAddress();
+        if (readWriteCharacteristic.getRequestType() == ProcessQueueExecutor.REQUEST_TYPE_WRITE_CHAR) {
+            // Refilled when the write completes, until then reads go over the link behind it.
+            BluetoothGattCharacteristic characteristic = readWriteCharacteristic.getCharacteristic();
+            characteristicCache.invalidate(address, getServiceUuid(characteristic), characteristic.getUuid());
+        }
+        connectionPool.touch(address);
+        if (connectionPool.isEvicted(address)) {
+            connectionSupervisor.reconnect(address);
+        }
+        if (!ProcessQueueExecutor.addProcess(readWriteCharacteristic)) {
+            readWriteCharacteristic.complete(null, GattFuture.STATUS_REJECTED);
+            mBluetoothLeListener.onError("Request queue is full for " + address);
+        }
     }
     // -----------------------------------------------------------***-------------------------------------------------------------------//
 
 
     /**
-     * Connect bluetooth gatt.
+     * Connect bluetooth gatt. Only ConnectScheduler.MAX_CONNECTING devices are connected at
+     * once, the others wait for their turn. A direct connect that does not succeed within
+     * ConnectScheduler.CONNECT_TIMEOUT continues as a background autoConnect.
      *
      * @param device      the device
      * @param autoConnect the auto connect
-     * @return the bluetooth gatt
+     * @return the bluetooth gatt, null if the device waits for its turn. The gatt is passed
+     * to onConnectionStateChange in any case.
      */
     public BluetoothGatt connect(BluetoothDevice device, boolean autoConnect) {
         if (mBluetoothManager==null) {
             mBluetoothLeListener.onError("BluetoothManager is null");
+            return null;
         }
         if (device==null) {
             mBluetoothLeListener.onError("BluetoothDevice is null");
+            return null;
         }
-        BluetoothGatt bluetoothGatt = bluetoothGattHashMap.get(device.getAddress());
+        BluetoothGatt bluetoothGatt = connectionPool.getGatt(device.getAddress());
+        if (connectionSupervisor.isActive(device.getAddress())
+                && (bluetoothGatt!=null || connectScheduler.isPending(device.getAddress()))) {
+            // Already connected or connecting, keep the link instead of rebuilding it.
+            return bluetoothGatt;
+        }
+        connectionSupervisor.onConnect(device, autoConnect);
+        return connectScheduler.connect(device, autoConnect);
+    }
+
+    /**
+     * Replaces the connection of the device with a new one, making room in the pool.
+     *
+     * @return the new BluetoothGatt, null if the device could not be connected now.
+     */
+    synchronized BluetoothGatt openGatt(BluetoothDevice device, boolean autoConnect) {
+        BluetoothGatt bluetoothGatt = connectionPool.getGatt(device.getAddress());
         if (bluetoothGatt!=null) {
             bluetoothGatt.disconnect();
             bluetoothGatt.close();
@@ -179,14 +721,13 @@ public class BluetoothLe {
         int connectionState = mBluetoothManager.getConnectionState(device, BluetoothProfile.GATT);
         BluetoothGatt mBluetoothGatt = null;
         if (connectionState == BluetoothProfile.STATE_DISCONNECTED) {
-            mBluetoothGatt = device.connectGatt(context, autoConnect, mGattCallbacks);
-            // Add the each BluetoothGatt in to an array list.
-            if (!bluetoothGattHashMap.containsKey(device.getAddress())) {
-                bluetoothGattHashMap.put(device.getAddress(), mBluetoothGatt);
-            } else {
-                bluetoothGattHashMap.remove(device.getAddress());
-                bluetoothGattHashMap.put(device.getAddress(), mBluetoothGatt);
+            // Close the least recently used idle connection if the pool is full.
+            if (!connectionPool.makeRoom(device.getAddress())) {
+                mBluetoothLeListener.onError("Too many connections, " + device.getAddress() + " was not connected");
+                return null;
             }
+            mBluetoothGatt = device.connectGatt(context, autoConnect, mGattCallbacks);
+            connectionPool.put(device, mBluetoothGatt);
         }
         return mBluetoothGatt;
     }
@@ -198,18 +739,76 @@ public class BluetoothLe {
      */
     public void disconnect(BluetoothGatt mBluetoothGatt) {
         try {
-            bluetoothGattHashMap.remove(mBluetoothGatt.getDevice().getAddress());
+            connectionPool.remove(mBluetoothGatt.getDevice().getAddress());
+            connectionSupervisor.stop(mBluetoothGatt.getDevice().getAddress());
+            connectScheduler.cancel(mBluetoothGatt.getDevice().getAddress());
+            subscriptionRegistry.clear(mBluetoothGatt.getDevice().getAddress());
+            ProcessQueueExecutor.clearProcess(mBluetoothGatt);
             mBluetoothGatt.disconnect();
             mBluetoothGatt.close();
         } catch (Exception e) {
         }
     }
 
-    // Destructor
-    @Override
-    protected void finalize() throws Throwable {
-        if (!processQueueExecutor.equals(null))
-            processQueueExecutor.interrupt();
+    /**
+     * Closes a connection that lost its link, the device stays in the pool to be reconnected.
+     */
+    void closeGatt(BluetoothDevice device, BluetoothGatt bluetoothGatt) {
+        connectionPool.put(device, null);
+        try {
+            bluetoothGatt.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * Called when a connection attempt could not be started.
+     */
+    void onConnectFailed(BluetoothDevice device) {
+        connectionSupervisor.onConnectFailed(device.getAddress());
+    }
+
+    /**
+     * Called when the reconnect attempts of a device ran out, its queued requests are cancelled.
+     */
+    void giveUp(BluetoothDevice device) {
+        connectionSupervisor.stop(device.getAddress());
+        connectScheduler.cancel(device.getAddress());
+        subscriptionRegistry.clear(device.getAddress());
+        connectionPool.remove(device.getAddress());
+        ProcessQueueExecutor.clearProcess(device.getAddress());
+        mBluetoothLeListener.onError("Gave up reconnecting to " + device.getAddress());
+    }
+
+    /**
+     * Disconnects every device of this instance and gives back the shared threads, which stop
+     * once the last instance is closed. Call it when the instance is no longer needed, e.g.
+     * from onDestroy, and do not use the instance afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        Set<String> addresses = connectionPool.getDeviceAddresses();
+        addresses.addAll(connectionSupervisor.getDeviceAddresses());
+        for (String address : addresses) {
+            connectionSupervisor.stop(address);
+            connectScheduler.cancel(address);
+            subscriptionRegistry.clear(address);
+            ProcessQueueExecutor.clearProcess(address);
+            BluetoothGatt bluetoothGatt = connectionPool.remove(address);
+            if (bluetoothGatt != null) {
+                try {
+                    bluetoothGatt.disconnect();
+                    bluetoothGatt.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+        SharedScheduler.release();
     }
 
     public interface BluetoothLeListener {
@@ -220,6 +819,7 @@ public class BluetoothLe {
 
         void onConnectionStateChange(BluetoothGatt gatt, int status, int newState);
 
+        // Called on the Binder thread for characteristics without a notification handler.
         void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic);
 
         //Read / Write Response method.
@@ -0,0 +1,156 @@
+package com.beele;
+
+import android.os.SystemClock;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * CharacteristicCache.java
+ * <p/>
+ * Read-through cache of characteristic values, keyed by device address, service UUID and
+ * characteristic UUID, so the same characteristic in two services, e.g. two instances of the
+ * battery service, is cached twice.
+ * Only characteristics with a time to live are cached: use {@link #FOREVER} for static values
+ * like the serial number and a short time for values like the battery level. The cache is
+ * updated by reads, writes and notifications, so a fresh value can be returned without using
+ * the link.
+ */
+public class CharacteristicCache {
+
+    public final static long FOREVER = Long.MAX_VALUE;
+
+    private final ConcurrentMap<UUID, Long> timeToLive = new ConcurrentHashMap<UUID, Long>();
+    private final ConcurrentMap<String, ConcurrentMap<CacheKey, CachedValue>> deviceValues = new ConcurrentHashMap<String, ConcurrentMap<CacheKey, CachedValue>>();
+    private volatile long defaultTimeToLive;
+
+    /**
+     * Sets how long a value of the characteristic stays fresh.
+     *
+     * @param characteristicUuid UUID of the characteristic.
+     * @param millis             time to live, 0 to stop caching it.
+     */
+    public void setTimeToLive(UUID characteristicUuid, long millis) {
+        if (millis > 0) {
+            timeToLive.put(characteristicUuid, millis);
+        } else {
+            timeToLive.remove(characteristicUuid);
+        }
+    }
+
+    /**
+     * Sets the time to live of every characteristic without its own, 0 (the default) caches
+     * only the characteristics given to {@link #setTimeToLive(UUID, long)}.
+     */
+    public void setDefaultTimeToLive(long millis) {
+        defaultTimeToLive = Math.max(0, millis);
+    }
+
+    /**
+     * Returns the cached value if it is still fresh.
+     *
+     * @param serviceUuid UUID of the service holding the characteristic.
+     * @return the value, or null on a miss. The array is shared and must not be modified.
+     */
+    public byte[] get(String deviceAddress, UUID serviceUuid, UUID characteristicUuid) {
+        ConcurrentMap<CacheKey, CachedValue> values = deviceValues.get(deviceAddress);
+        if (values == null) {
+            return null;
+        }
+        CacheKey key = new CacheKey(serviceUuid, characteristicUuid);
+        CachedValue cachedValue = values.get(key);
+        if (cachedValue == null) {
+            return null;
+        }
+        long millis = getTimeToLive(characteristicUuid);
+        if (millis <= 0 || SystemClock.elapsedRealtime() - cachedValue.timestamp >= millis) {
+            values.remove(key, cachedValue);
+            return null;
+        }
+        return cachedValue.value;
+    }
+
+    /**
+     * Stores a copy of the value if the characteristic is cached.
+     *
+     * @param serviceUuid UUID of the service holding the characteristic.
+     */
+    public void put(String deviceAddress, UUID serviceUuid, UUID characteristicUuid, byte[] value) {
+        if (value == null || getTimeToLive(characteristicUuid) <= 0) {
+            return;
+        }
+        ConcurrentMap<CacheKey, CachedValue> values = deviceValues.get(deviceAddress);
+        if (values == null) {
+            ConcurrentMap<CacheKey, CachedValue> newValues = new ConcurrentHashMap<CacheKey, CachedValue>();
+            values = deviceValues.putIfAbsent(deviceAddress, newValues);
+            if (values == null) {
+                values = newValues;
+            }
+        }
+        values.put(new CacheKey(serviceUuid, characteristicUuid), new CachedValue(value.clone(), SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Forgets the value of one characteristic, e.g. while a write to it is queued.
+     */
+    public void invalidate(String deviceAddress, UUID serviceUuid, UUID characteristicUuid) {
+        ConcurrentMap<CacheKey, CachedValue> values = deviceValues.get(deviceAddress);
+        if (values != null) {
+            values.remove(new CacheKey(serviceUuid, characteristicUuid));
+        }
+    }
+
+    /**
+     * Forgets every value of the device, e.g. after a firmware update.
+     */
+    public void invalidate(String deviceAddress) {
+        deviceValues.remove(deviceAddress);
+    }
+
+    public void clear() {
+        deviceValues.clear();
+    }
+
+    private long getTimeToLive(UUID characteristicUuid) {
+        Long millis = timeToLive.get(characteristicUuid);
+        return millis != null ? millis : defaultTimeToLive;
+    }
+
+    private static final class CacheKey {
+        final UUID serviceUuid;
+        final UUID characteristicUuid;
+        final int hash;
+
+        CacheKey(UUID serviceUuid, UUID characteristicUuid) {
+            this.serviceUuid = serviceUuid;
+            this.characteristicUuid = characteristicUuid;
+            this.hash = 31 * (serviceUuid == null ? 0 : serviceUuid.hashCode()) + characteristicUuid.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && characteristicUuid.equals(other.characteristicUuid)
+                    && (serviceUuid == null ? other.serviceUuid == null : serviceUuid.equals(other.serviceUuid));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class CachedValue {
+        final byte[] value;
+        final long timestamp;
+
+        CachedValue(byte[] value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+}
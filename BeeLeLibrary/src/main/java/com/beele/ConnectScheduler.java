@@ -0,0 +1,171 @@
+package com.beele;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ConnectScheduler.java
+ * <p/>
+ * Limits how many direct connection attempts run at once. The stack only establishes a few
+ * connections in parallel, further connectGatt calls just wait inside the stack and time out
+ * together. Attempts beyond {@link #MAX_CONNECTING} wait here in the order they were made.
+ * <p/>
+ * A direct attempt (autoConnect=false) that is not connected within {@link #CONNECT_TIMEOUT}
+ * falls back to a background autoConnect and frees its slot, so a device that is out of range
+ * does not hold up the devices behind it. It is still connected as soon as it shows up.
+ */
+public class ConnectScheduler {
+
+    public static int MAX_CONNECTING = 2;
+    // Time a direct attempt gets before it falls back to autoConnect, 0 to wait for the stack.
+    public static long CONNECT_TIMEOUT = 10000;
+
+    private final BluetoothLe bluetoothLe;
+    // Devices waiting for a slot, in the order they were connected.
+    private final LinkedHashMap<String, BluetoothDevice> waitingDevices = new LinkedHashMap<String, BluetoothDevice>();
+    private final Map<String, Attempt> attempts = new HashMap<String, Attempt>();
+
+    ConnectScheduler(BluetoothLe bluetoothLe) {
+        this.bluetoothLe = bluetoothLe;
+    }
+
+    /**
+     * Connects the device now if a slot is free, otherwise once one is. A failed attempt is
+     * reported to BluetoothLe, which backs off and tries again.
+     *
+     * @param autoConnect true to skip the direct attempt and connect in the background.
+     * @return the new BluetoothGatt, null if the device waits for a slot or was not connected.
+     */
+    BluetoothGatt connect(BluetoothDevice device, boolean autoConnect) {
+        String address = device.getAddress();
+        if (autoConnect) {
+            cancel(address);
+            BluetoothGatt bluetoothGatt = bluetoothLe.openGatt(device, true);
+            if (bluetoothGatt == null) {
+                bluetoothLe.onConnectFailed(device);
+            }
+            return bluetoothGatt;
+        }
+        synchronized (this) {
+            if (!attempts.containsKey(address)) {
+                waitingDevices.put(address, device);
+            }
+        }
+        startWaiting();
+        synchronized (this) {
+            if (!attempts.containsKey(address)) {
+                return null;
+            }
+        }
+        return bluetoothLe.getConnectionPool().getGatt(address);
+    }
+
+    /**
+     * @return true if the device is waiting for a slot or has a direct attempt running.
+     */
+    public synchronized boolean isPending(String deviceAddress) {
+        return waitingDevices.containsKey(deviceAddress) || attempts.containsKey(deviceAddress);
+    }
+
+    /**
+     * The device connected or its attempt failed, its slot goes to the next device.
+     */
+    void onAttemptFinished(String deviceAddress) {
+        if (finish(deviceAddress) != null) {
+            startWaiting();
+        }
+    }
+
+    /**
+     * Forgets the device, e.g. after the app disconnected it.
+     */
+    void cancel(String deviceAddress) {
+        boolean freed;
+        synchronized (this) {
+            waitingDevices.remove(deviceAddress);
+            freed = finish(deviceAddress) != null;
+        }
+        if (freed) {
+            startWaiting();
+        }
+    }
+
+    private synchronized Attempt finish(String deviceAddress) {
+        Attempt attempt = attempts.remove(deviceAddress);
+        if (attempt != null && attempt.timeoutTask != null) {
+            attempt.timeoutTask.cancel();
+        }
+        return attempt;
+    }
+
+    private void startWaiting() {
+        while (true) {
+            Attempt attempt;
+            synchronized (this) {
+                if (attempts.size() >= Math.max(1, MAX_CONNECTING) || waitingDevices.isEmpty()) {
+                    return;
+                }
+                Iterator<BluetoothDevice> iterator = waitingDevices.values().iterator();
+                attempt = new Attempt(iterator.next());
+                iterator.remove();
+                attempts.put(attempt.device.getAddress(), attempt);
+            }
+            // connectGatt may evict pool connections, so it is called outside the lock.
+            BluetoothGatt bluetoothGatt = bluetoothLe.openGatt(attempt.device, false);
+            if (bluetoothGatt == null) {
+                finish(attempt.device.getAddress());
+                bluetoothLe.onConnectFailed(attempt.device);
+                continue;
+            }
+            scheduleTimeout(attempt);
+        }
+    }
+
+    private void scheduleTimeout(final Attempt attempt) {
+        if (CONNECT_TIMEOUT <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (attempts.get(attempt.device.getAddress()) != attempt) {
+                // Connected or failed already.
+                return;
+            }
+            attempt.timeoutTask = new ScheduledTask() {
+                @Override
+                public void run() {
+                    fallBack(attempt);
+                }
+            };
+        }
+        // Not scheduled once the BluetoothLe was closed.
+        SharedScheduler.schedule(attempt.timeoutTask, CONNECT_TIMEOUT);
+    }
+
+    private void fallBack(Attempt attempt) {
+        synchronized (this) {
+            if (attempts.get(attempt.device.getAddress()) != attempt) {
+                return;
+            }
+            attempts.remove(attempt.device.getAddress());
+        }
+        // Replaces the direct gatt, the background connect does not need a slot.
+        if (bluetoothLe.openGatt(attempt.device, true) == null) {
+            bluetoothLe.onConnectFailed(attempt.device);
+        }
+        startWaiting();
+    }
+
+    private static class Attempt {
+        final BluetoothDevice device;
+        ScheduledTask timeoutTask;
+
+        Attempt(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.beele;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ConnectionSupervisor.java
+ * <p/>
+ * Tracks the connection state of every device connected through {@link BluetoothLe} and
+ * reconnects devices that drop the link. The states follow each other as
+ * CONNECTING, CONNECTED, DISCOVERING and READY. A lost link moves the device to BACKOFF:
+ * its queued requests are held back, the gatt is closed and a new connection is tried after
+ * a jittered exponential backoff, so many devices dropping at once do not reconnect at once.
+ * Once the services of the new connection are discovered the device is READY again and its
+ * queued requests are sent.
+ * <p/>
+ * Only {@link BluetoothLe#disconnect(BluetoothGatt)} stops the supervision of a device.
+ */
+public class ConnectionSupervisor {
+
+    public final static int STATE_DISCONNECTED = 0;
+    public final static int STATE_CONNECTING = 1;
+    public final static int STATE_CONNECTED = 2;
+    public final static int STATE_DISCOVERING = 3;
+    public final static int STATE_READY = 4;
+    // Waiting to reconnect after the link was lost.
+    public final static int STATE_BACKOFF = 5;
+
+    public static long RECONNECT_BACKOFF = 1000;
+    public static long RECONNECT_BACKOFF_MAX = 60000;
+    // Reconnect attempts in a row before the queued requests are cancelled, -1 for no limit.
+    public static int MAX_RECONNECT_ATTEMPTS = -1;
+
+    private final BluetoothLe bluetoothLe;
+    private final ConcurrentMap<String, SupervisedDevice> devices = new ConcurrentHashMap<String, SupervisedDevice>();
+    private final Random reconnectJitter = new Random();
+    private volatile ConnectionStateListener connectionStateListener;
+
+    ConnectionSupervisor(BluetoothLe bluetoothLe) {
+        this.bluetoothLe = bluetoothLe;
+    }
+
+    /**
+     * @return the addresses of the supervised devices.
+     */
+    Set<String> getDeviceAddresses() {
+        return new HashSet<String>(devices.keySet());
+    }
+
+    /**
+     * @return one of the STATE_* constants.
+     */
+    public int getState(String deviceAddress) {
+        SupervisedDevice supervisedDevice = devices.get(deviceAddress);
+        return supervisedDevice == null ? STATE_DISCONNECTED : supervisedDevice.state;
+    }
+
+    /**
+     * Sets the listener told about every state change, it runs on the thread that caused the
+     * change and must not block.
+     */
+    public void setConnectionStateListener(ConnectionStateListener connectionStateListener) {
+        this.connectionStateListener = connectionStateListener;
+    }
+
+    /**
+     * @return true if the device is connected or on its way to be.
+     */
+    boolean isActive(String deviceAddress) {
+        int state = getState(deviceAddress);
+        return state != STATE_DISCONNECTED && state != STATE_BACKOFF;
+    }
+
+    /**
+     * Starts supervising a device the app connects to.
+     */
+    void onConnect(BluetoothDevice device, boolean autoConnect) {
+        SupervisedDevice supervisedDevice = getDevice(device);
+        synchronized (supervisedDevice) {
+            if (supervisedDevice.state == STATE_DISCONNECTED) {
+                supervisedDevice.attempt = 0;
+            }
+            supervisedDevice.autoConnect = autoConnect;
+            cancelReconnect(supervisedDevice);
+        }
+        setState(supervisedDevice, STATE_CONNECTING);
+    }
+
+    /**
+     * Reconnects a device whose connection was evicted from the GattConnectionPool. Its
+     * requests are held back until the services of the new connection are discovered.
+     */
+    void reconnect(String deviceAddress) {
+        SupervisedDevice supervisedDevice = devices.get(deviceAddress);
+        if (supervisedDevice == null) {
+            return;
+        }
+        synchronized (supervisedDevice) {
+            if (supervisedDevice.state != STATE_DISCONNECTED) {
+                // Already reconnecting, or backing off and reconnecting later.
+                return;
+            }
+            supervisedDevice.replay = true;
+        }
+        ProcessQueueExecutor.pauseProcess(deviceAddress);
+        setState(supervisedDevice, STATE_CONNECTING);
+        bluetoothLe.getConnectScheduler().connect(supervisedDevice.device, supervisedDevice.autoConnect);
+    }
+
+    /**
+     * The connection attempt could not be started, try again after a backoff.
+     */
+    void onConnectFailed(String deviceAddress) {
+        SupervisedDevice supervisedDevice = devices.get(deviceAddress);
+        if (supervisedDevice == null || supervisedDevice.state != STATE_CONNECTING) {
+            return;
+        }
+        scheduleReconnect(supervisedDevice);
+    }
+
+    /**
+     * @return true if the services should be discovered without waiting for the app, because
+     * the connection was opened by the supervisor.
+     */
+    boolean onConnected(BluetoothGatt bluetoothGatt) {
+        SupervisedDevice supervisedDevice = devices.get(bluetoothGatt.getDevice().getAddress());
+        if (supervisedDevice == null) {
+            return false;
+        }
+        setState(supervisedDevice, STATE_CONNECTED);
+        return supervisedDevice.replay;
+    }
+
+    /**
+     * @return false if a discovery is already running.
+     */
+    boolean onDiscovering(String deviceAddress) {
+        SupervisedDevice supervisedDevice = devices.get(deviceAddress);
+        if (supervisedDevice == null) {
+            return true;
+        }
+        synchronized (supervisedDevice) {
+            if (supervisedDevice.state == STATE_DISCOVERING) {
+                return false;
+            }
+        }
+        setState(supervisedDevice, STATE_DISCOVERING);
+        return true;
+    }
+
+    void onServicesDiscovered(BluetoothGatt bluetoothGatt, int status) {
+        SupervisedDevice supervisedDevice = devices.get(bluetoothGatt.getDevice().getAddress());
+        if (supervisedDevice == null) {
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            setState(supervisedDevice, STATE_CONNECTED);
+            if (supervisedDevice.replay) {
+                // Nobody else retries the discovery, start over with a new connection.
+                bluetoothGatt.disconnect();
+            }
+            return;
+        }
+        synchronized (supervisedDevice) {
+            supervisedDevice.attempt = 0;
+            supervisedDevice.replay = false;
+        }
+        setState(supervisedDevice, STATE_READY);
+    }
+
+    /**
+     * Holds back the requests of a device that lost its link and schedules a reconnect.
+     */
+    void onDisconnected(BluetoothGatt bluetoothGatt) {
+        String address = bluetoothGatt.getDevice().getAddress();
+        SupervisedDevice supervisedDevice = devices.get(address);
+        if (supervisedDevice == null) {
+            return;
+        }
+        synchronized (supervisedDevice) {
+            if (supervisedDevice.state == STATE_DISCONNECTED || supervisedDevice.state == STATE_BACKOFF) {
+                return;
+            }
+            supervisedDevice.replay = true;
+        }
+        ProcessQueueExecutor.pauseProcess(address);
+        bluetoothLe.closeGatt(supervisedDevice.device, bluetoothGatt);
+        scheduleReconnect(supervisedDevice);
+    }
+
+    /**
+     * The pool closed the idle connection of the device, it reconnects on the next request.
+     */
+    void onEvicted(String deviceAddress) {
+        SupervisedDevice supervisedDevice = devices.get(deviceAddress);
+        if (supervisedDevice == null) {
+            return;
+        }
+        synchronized (supervisedDevice) {
+            cancelReconnect(supervisedDevice);
+        }
+        setState(supervisedDevice, STATE_DISCONNECTED);
+    }
+
+    /**
+     * Stops supervising the device, e.g. after the app disconnected it.
+     */
+    void stop(String deviceAddress) {
+        SupervisedDevice supervisedDevice = devices.remove(deviceAddress);
+        if (supervisedDevice == null) {
+            return;
+        }
+        synchronized (supervisedDevice) {
+            cancelReconnect(supervisedDevice);
+        }
+        setState(supervisedDevice, STATE_DISCONNECTED);
+    }
+
+    private void scheduleReconnect(final SupervisedDevice supervisedDevice) {
+        long delay;
+        ScheduledTask reconnectTask = null;
+        synchronized (supervisedDevice) {
+            if (devices.get(supervisedDevice.device.getAddress()) != supervisedDevice) {
+                return;
+            }
+            int attempt = ++supervisedDevice.attempt;
+            if (MAX_RECONNECT_ATTEMPTS >= 0 && attempt > MAX_RECONNECT_ATTEMPTS) {
+                delay = -1;
+            } else {
+                long backoff = Math.min(RECONNECT_BACKOFF_MAX, RECONNECT_BACKOFF << Math.min(attempt - 1, 16));
+                delay = backoff / 2 + (long) (reconnectJitter.nextDouble() * (backoff / 2));
+                cancelReconnect(supervisedDevice);
+                reconnectTask = new ScheduledTask() {
+                    @Override
+                    public void run() {
+                        reconnectNow(supervisedDevice, this);
+                    }
+                };
+                supervisedDevice.reconnectTask = reconnectTask;
+            }
+        }
+        if (delay < 0) {
+            bluetoothLe.giveUp(supervisedDevice.device);
+            return;
+        }
+        setState(supervisedDevice, STATE_BACKOFF);
+        // Not scheduled once the BluetoothLe was closed.
+        SharedScheduler.schedule(reconnectTask, delay);
+    }
+
+    private void reconnectNow(SupervisedDevice supervisedDevice, ScheduledTask task) {
+        synchronized (supervisedDevice) {
+            if (supervisedDevice.reconnectTask != task || supervisedDevice.state != STATE_BACKOFF) {
+                return;
+            }
+            supervisedDevice.reconnectTask = null;
+        }
+        setState(supervisedDevice, STATE_CONNECTING);
+        bluetoothLe.getConnectScheduler().connect(supervisedDevice.device, supervisedDevice.autoConnect);
+    }
+
+    private static void cancelReconnect(SupervisedDevice supervisedDevice) {
+        if (supervisedDevice.reconnectTask != null) {
+            supervisedDevice.reconnectTask.cancel();
+            supervisedDevice.reconnectTask = null;
+        }
+    }
+
+    private SupervisedDevice getDevice(BluetoothDevice device) {
+        SupervisedDevice supervisedDevice = devices.get(device.getAddress());
+        if (supervisedDevice == null) {
+            SupervisedDevice newDevice = new SupervisedDevice(device);
+            supervisedDevice = devices.putIfAbsent(device.getAddress(), newDevice);
+            if (supervisedDevice == null) {
+                supervisedDevice = newDevice;
+            }
+        }
+        return supervisedDevice;
+    }
+
+    private void setState(SupervisedDevice supervisedDevice, int state) {
+        synchronized (supervisedDevice) {
+            if (supervisedDevice.state == state) {
+                return;
+            }
+            supervisedDevice.state = state;
+        }
+        ConnectionStateListener listener = connectionStateListener;
+        if (listener != null) {
+            listener.onConnectionStateChanged(supervisedDevice.device.getAddress(), state);
+        }
+    }
+
+    private static class SupervisedDevice {
+        final BluetoothDevice device;
+        volatile int state = STATE_DISCONNECTED;
+        boolean autoConnect;
+        // Requests are held back until the supervisor's own connection is READY.
+        volatile boolean replay;
+        int attempt;
+        ScheduledTask reconnectTask;
+
+        SupervisedDevice(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    public interface ConnectionStateListener {
+        void onConnectionStateChanged(String deviceAddress, int state);
+    }
+}
@@ -0,0 +1,389 @@
+package com.beele;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GattCodec.java
+ * <p/>
+ * Decodes and encodes the value formats of the Bluetooth specification straight from and into
+ * a ByteBuffer, e.g. the one of a {@link PooledValue}. Multi-byte values are little endian as
+ * on the air, whatever the byte order of the buffer. All offsets are absolute, so the position
+ * of the buffer is never changed, and nothing is allocated or boxed.
+ * <p/>
+ * SFLOAT and FLOAT are the 16 and 32 bit decimal floats of IEEE 11073-20601 used by the health
+ * profiles: a mantissa times a power of ten, with reserved values for NaN, NRes and infinity.
+ */
+public final class GattCodec {
+
+    // Same values as the BluetoothGattCharacteristic.FORMAT_* constants, the low nibble is the size.
+    public final static int FORMAT_UINT8 = 0x11;
+    public final static int FORMAT_UINT16 = 0x12;
+    public final static int FORMAT_UINT32 = 0x14;
+    public final static int FORMAT_SINT8 = 0x21;
+    public final static int FORMAT_SINT16 = 0x22;
+    public final static int FORMAT_SINT32 = 0x24;
+    public final static int FORMAT_SFLOAT = 0x32;
+    public final static int FORMAT_FLOAT = 0x34;
+
+    private final static int SFLOAT_NAN = 0x07FF;
+    private final static int SFLOAT_NRES = 0x0800;
+    private final static int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    private final static int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private final static int SFLOAT_MANTISSA_MAX = 0x07FD;
+    private final static int FLOAT_NAN = 0x007FFFFF;
+    private final static int FLOAT_NRES = 0x00800000;
+    private final static int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    private final static int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    private final static int FLOAT_MANTISSA_MAX = 0x007FFFFD;
+
+    // 10^0 to 10^8, the magnitudes of the exponents of an SFLOAT. Dividing by an exact power
+    // of ten keeps 36.5 from turning into 36.500004.
+    private final static float[] SFLOAT_POWERS = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f};
+
+    private GattCodec() {
+    }
+
+    /**
+     * @return the size in bytes of a value of the given FORMAT_* constant.
+     */
+    public static int getSize(int format) {
+        return format & 0xF;
+    }
+
+    //---------------------------------------------- Integers --------------------------------------------------------------//
+
+    public static int getUint8(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) & 0xFF;
+    }
+
+    public static int getUint16(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) | (buffer.get(offset + 1) & 0xFF) << 8;
+    }
+
+    public static long getUint32(ByteBuffer buffer, int offset) {
+        return getSint32(buffer, offset) & 0xFFFFFFFFL;
+    }
+
+    public static int getSint8(ByteBuffer buffer, int offset) {
+        return buffer.get(offset);
+    }
+
+    public static int getSint16(ByteBuffer buffer, int offset) {
+        return (short) getUint16(buffer, offset);
+    }
+
+    public static int getSint32(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) | (buffer.get(offset + 1) & 0xFF) << 8
+                | (buffer.get(offset + 2) & 0xFF) << 16 | buffer.get(offset + 3) << 24;
+    }
+
+    /**
+     * Decodes an integer of any of the FORMAT_UINT* / FORMAT_SINT* formats.
+     */
+    public static long getInteger(ByteBuffer buffer, int offset, int format) {
+        switch (format) {
+            case FORMAT_UINT8:
+                return getUint8(buffer, offset);
+            case FORMAT_UINT16:
+                return getUint16(buffer, offset);
+            case FORMAT_UINT32:
+                return getUint32(buffer, offset);
+            case FORMAT_SINT8:
+                return getSint8(buffer, offset);
+            case FORMAT_SINT16:
+                return getSint16(buffer, offset);
+            case FORMAT_SINT32:
+                return getSint32(buffer, offset);
+            default:
+                throw new IllegalArgumentException("Not an integer format: " + format);
+        }
+    }
+
+    public static void putUint8(ByteBuffer buffer, int offset, int value) {
+        buffer.put(offset, (byte) value);
+    }
+
+    public static void putUint16(ByteBuffer buffer, int offset, int value) {
+        buffer.put(offset, (byte) value);
+        buffer.put(offset + 1, (byte) (value >> 8));
+    }
+
+    public static void putUint32(ByteBuffer buffer, int offset, long value) {
+        putSint32(buffer, offset, (int) value);
+    }
+
+    public static void putSint8(ByteBuffer buffer, int offset, int value) {
+        buffer.put(offset, (byte) value);
+    }
+
+    public static void putSint16(ByteBuffer buffer, int offset, int value) {
+        putUint16(buffer, offset, value);
+    }
+
+    public static void putSint32(ByteBuffer buffer, int offset, int value) {
+        buffer.put(offset, (byte) value);
+        buffer.put(offset + 1, (byte) (value >> 8));
+        buffer.put(offset + 2, (byte) (value >> 16));
+        buffer.put(offset + 3, (byte) (value >> 24));
+    }
+
+    /**
+     * Encodes an integer in any of the FORMAT_UINT* / FORMAT_SINT* formats, keeping its low bytes.
+     */
+    public static void putInteger(ByteBuffer buffer, int offset, int format, long value) {
+        switch (format) {
+            case FORMAT_UINT8:
+            case FORMAT_SINT8:
+                putSint8(buffer, offset, (int) value);
+                break;
+            case FORMAT_UINT16:
+            case FORMAT_SINT16:
+                putSint16(buffer, offset, (int) value);
+                break;
+            case FORMAT_UINT32:
+            case FORMAT_SINT32:
+                putSint32(buffer, offset, (int) value);
+                break;
+            default:
+                throw new IllegalArgumentException("Not an integer format: " + format);
+        }
+    }
+
+    //---------------------------------------------- IEEE 11073 floats --------------------------------------------------------------//
+
+    /**
+     * @return the value of the 16 bit SFLOAT, NaN for NaN, NRes and the reserved value.
+     */
+    public static float getSfloat(ByteBuffer buffer, int offset) {
+        int raw = getUint16(buffer, offset);
+        int mantissa = raw & 0x0FFF;
+        switch (mantissa) {
+            case SFLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case 0x0801:
+                return Float.NaN;
+        }
+        if (mantissa >= 0x0800) {
+            mantissa -= 0x1000;
+        }
+        int exponent = raw >> 12;
+        if (exponent >= 0x8) {
+            exponent -= 0x10;
+        }
+        return exponent < 0 ? mantissa / SFLOAT_POWERS[-exponent] : mantissa * SFLOAT_POWERS[exponent];
+    }
+
+    /**
+     * @return the value of the 32 bit FLOAT, NaN for NaN, NRes and the reserved value.
+     */
+    public static double getFloat(ByteBuffer buffer, int offset) {
+        int raw = getSint32(buffer, offset);
+        int mantissa = raw & 0x00FFFFFF;
+        switch (mantissa) {
+            case FLOAT_POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+            case FLOAT_NAN:
+            case FLOAT_NRES:
+            case 0x00800001:
+                return Double.NaN;
+        }
+        if (mantissa >= 0x00800000) {
+            mantissa -= 0x01000000;
+        }
+        int exponent = raw >> 24;
+        return exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+    }
+
+    /**
+     * Encodes an SFLOAT from its parts, e.g. 365 and -1 for 36.5.
+     */
+    public static void putSfloat(ByteBuffer buffer, int offset, int mantissa, int exponent) {
+        putUint16(buffer, offset, (exponent & 0xF) << 12 | (mantissa & 0x0FFF));
+    }
+
+    /**
+     * Encodes the value as an SFLOAT with as many decimals as its 12 bit mantissa allows.
+     */
+    public static void putSfloat(ByteBuffer buffer, int offset, float value) {
+        if (Float.isNaN(value)) {
+            putUint16(buffer, offset, SFLOAT_NAN);
+            return;
+        }
+        for (int exponent = -8; exponent <= 7; exponent++) {
+            float mantissa = exponent < 0 ? value * SFLOAT_POWERS[-exponent] : value / SFLOAT_POWERS[exponent];
+            if (Math.abs(mantissa) <= SFLOAT_MANTISSA_MAX) {
+                putSfloat(buffer, offset, Math.round(mantissa), exponent);
+                return;
+            }
+        }
+        putUint16(buffer, offset, value > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Encodes a FLOAT from its parts, e.g. 36512 and -3 for 36.512.
+     */
+    public static void putFloat(ByteBuffer buffer, int offset, int mantissa, int exponent) {
+        putSint32(buffer, offset, exponent << 24 | (mantissa & 0x00FFFFFF));
+    }
+
+    /**
+     * Encodes the value as a FLOAT with as many decimals as its 24 bit mantissa allows.
+     */
+    public static void putFloat(ByteBuffer buffer, int offset, double value) {
+        if (Double.isNaN(value)) {
+            putSint32(buffer, offset, FLOAT_NAN);
+            return;
+        }
+        if (value == 0) {
+            putFloat(buffer, offset, 0, 0);
+            return;
+        }
+        // Start at about seven digits of mantissa instead of trying every exponent.
+        int exponent = Math.max(-128, (int) Math.floor(Math.log10(Math.abs(value))) - 6);
+        for (; exponent <= 127; exponent++) {
+            double mantissa = exponent < 0 ? value * Math.pow(10, -exponent) : value / Math.pow(10, exponent);
+            if (Math.abs(mantissa) <= FLOAT_MANTISSA_MAX) {
+                putFloat(buffer, offset, (int) Math.round(mantissa), exponent);
+                return;
+            }
+        }
+        putSint32(buffer, offset, value > 0 ? FLOAT_POSITIVE_INFINITY : FLOAT_NEGATIVE_INFINITY);
+    }
+
+    //---------------------------------------------- UTF-8 --------------------------------------------------------------//
+
+    /**
+     * Decodes UTF-8 into the given StringBuilder, which does not allocate as long as it has
+     * room. Malformed sequences become U+FFFD.
+     *
+     * @return the StringBuilder.
+     */
+    public static StringBuilder getUtf8(ByteBuffer buffer, int offset, int length, StringBuilder out) {
+        return getUtf8(buffer, null, offset, length, out);
+    }
+
+    /**
+     * Decodes UTF-8 from the array like {@link #getUtf8(ByteBuffer, int, int, StringBuilder)},
+     * without wrapping it in a ByteBuffer first.
+     *
+     * @return the StringBuilder.
+     */
+    public static StringBuilder getUtf8(byte[] array, int offset, int length, StringBuilder out) {
+        return getUtf8(null, array, offset, length, out);
+    }
+
+    // Reads from the array if there is one, otherwise from the buffer.
+    private static StringBuilder getUtf8(ByteBuffer buffer, byte[] array, int offset, int length, StringBuilder out) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = (array != null ? array[i++] : buffer.get(i++)) & 0xFF;
+            if (b < 0x80) {
+                out.append((char) b);
+                continue;
+            }
+            int extra;
+            int codePoint;
+            if (b >= 0xF0 && b < 0xF8) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else if (b >= 0xE0) {
+                extra = b < 0xF0 ? 2 : -1;
+                codePoint = b & 0x0F;
+            } else if (b >= 0xC2) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else {
+                extra = -1;
+                codePoint = 0;
+            }
+            if (extra < 0 || i + extra > end) {
+                out.append('\uFFFD');
+                continue;
+            }
+            int j = 0;
+            for (; j < extra; j++) {
+                int next = (array != null ? array[i + j] : buffer.get(i + j)) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    break;
+                }
+                codePoint = codePoint << 6 | (next & 0x3F);
+            }
+            if (j < extra || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF)
+                    || codePoint < (extra == 1 ? 0x80 : extra == 2 ? 0x800 : 0x10000)) {
+                out.append('\uFFFD');
+                i += j;
+                continue;
+            }
+            i += extra;
+            if (codePoint >= 0x10000) {
+                codePoint -= 0x10000;
+                out.append((char) (0xD800 | codePoint >> 10));
+                out.append((char) (0xDC00 | (codePoint & 0x3FF)));
+            } else {
+                out.append((char) codePoint);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the number of bytes of the text in UTF-8.
+     */
+    public static int getUtf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the text as UTF-8, unpaired surrogates become '?'.
+     *
+     * @return the number of bytes written, see {@link #getUtf8Length(CharSequence)}.
+     */
+    public static int putUtf8(ByteBuffer buffer, int offset, CharSequence text) {
+        int position = offset;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put(position++, (byte) c);
+            } else if (c < 0x800) {
+                buffer.put(position++, (byte) (0xC0 | c >> 6));
+                buffer.put(position++, (byte) (0x80 | (c & 0x3F)));
+            } else if (c >= 0xD800 && c <= 0xDFFF) {
+                if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put(position++, (byte) (0xF0 | codePoint >> 18));
+                    buffer.put(position++, (byte) (0x80 | (codePoint >> 12 & 0x3F)));
+                    buffer.put(position++, (byte) (0x80 | (codePoint >> 6 & 0x3F)));
+                    buffer.put(position++, (byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put(position++, (byte) '?');
+                }
+            } else {
+                buffer.put(position++, (byte) (0xE0 | c >> 12));
+                buffer.put(position++, (byte) (0x80 | (c >> 6 & 0x3F)));
+                buffer.put(position++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return position - offset;
+    }
+}
@@ -0,0 +1,187 @@
+package com.beele;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * GattConnectionPool.java
+ * <p/>
+ * Keeps the BluetoothGatt of each device and limits how many are open at once, since Android
+ * refuses further GATT clients (status 133) past a small stack dependent limit. When a new
+ * connection would go over the limit, the least recently used idle connection is closed.
+ * The device stays known to the pool as evicted, so the next request for it reconnects.
+ */
+public class GattConnectionPool {
+
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+    private volatile int maxConnections;
+    private volatile EvictionListener evictionListener;
+
+    public GattConnectionPool(int maxConnections) {
+        setMaxConnections(maxConnections);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Sets the listener told about every connection closed to make room for another one.
+     */
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @return the open BluetoothGatt of the device, or null if it is not connected or was evicted.
+     */
+    public BluetoothGatt getGatt(String deviceAddress) {
+        Connection connection = connections.get(deviceAddress);
+        return connection == null ? null : connection.bluetoothGatt;
+    }
+
+    /**
+     * @return the BluetoothDevice of a connected or evicted device, null if it is unknown.
+     */
+    public BluetoothDevice getDevice(String deviceAddress) {
+        Connection connection = connections.get(deviceAddress);
+        return connection == null ? null : connection.device;
+    }
+
+    /**
+     * @return true if the connection of the device was closed to make room for another one.
+     */
+    public boolean isEvicted(String deviceAddress) {
+        Connection connection = connections.get(deviceAddress);
+        return connection != null && connection.bluetoothGatt == null;
+    }
+
+    public void put(BluetoothDevice device, BluetoothGatt bluetoothGatt) {
+        Connection connection = new Connection(device);
+        connection.bluetoothGatt = bluetoothGatt;
+        connections.put(device.getAddress(), connection);
+    }
+
+    /**
+     * Forgets the device, e.g. after an explicit disconnect.
+     *
+     * @return the BluetoothGatt that was open, or null.
+     */
+    public BluetoothGatt remove(String deviceAddress) {
+        Connection connection = connections.remove(deviceAddress);
+        return connection == null ? null : connection.bluetoothGatt;
+    }
+
+    /**
+     * Marks the device as just used, which moves it to the end of the eviction order.
+     */
+    public void touch(String deviceAddress) {
+        Connection connection = connections.get(deviceAddress);
+        if (connection != null) {
+            connection.lastUsed = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the addresses of the connected and evicted devices.
+     */
+    public Set<String> getDeviceAddresses() {
+        return new HashSet<String>(connections.keySet());
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (Connection connection : connections.values()) {
+            if (connection.bluetoothGatt != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes least recently used idle connections until one more fits.
+     *
+     * @param deviceAddress the device about to connect, never evicted.
+     * @return false if the pool is full of busy connections.
+     */
+    public synchronized boolean makeRoom(String deviceAddress) {
+        Set<Connection> busy = null;
+        while (activeCountExcluding(deviceAddress) >= maxConnections) {
+            Connection leastRecentlyUsed = null;
+            for (Connection connection : connections.values()) {
+                if (connection.bluetoothGatt == null || connection.device.getAddress().equals(deviceAddress)
+                        || (busy != null && busy.contains(connection))
+                        || !ProcessQueueExecutor.isIdle(connection.device.getAddress())) {
+                    continue;
+                }
+                if (leastRecentlyUsed == null || connection.lastUsed < leastRecentlyUsed.lastUsed) {
+                    leastRecentlyUsed = connection;
+                }
+            }
+            if (leastRecentlyUsed == null) {
+                return false;
+            }
+            if (!evict(leastRecentlyUsed)) {
+                if (busy == null) {
+                    busy = new HashSet<Connection>();
+                }
+                busy.add(leastRecentlyUsed);
+            }
+        }
+        return true;
+    }
+
+    private int activeCountExcluding(String deviceAddress) {
+        int count = getActiveCount();
+        return getGatt(deviceAddress) != null ? count - 1 : count;
+    }
+
+    private boolean evict(Connection connection) {
+        String address = connection.device.getAddress();
+        // Hold back requests that raced the idle check, they are sent after the reconnect.
+        ProcessQueueExecutor.pauseProcess(address);
+        if (!ProcessQueueExecutor.isIdle(address)) {
+            ProcessQueueExecutor.resumeProcess(connection.bluetoothGatt);
+            return false;
+        }
+        BluetoothGatt bluetoothGatt = connection.bluetoothGatt;
+        connection.bluetoothGatt = null;
+        try {
+            bluetoothGatt.disconnect();
+            bluetoothGatt.close();
+        } catch (Exception e) {
+        }
+        EvictionListener listener = evictionListener;
+        if (listener != null) {
+            listener.onEvicted(address);
+        }
+        return true;
+    }
+
+    private static class Connection {
+        final BluetoothDevice device;
+        volatile BluetoothGatt bluetoothGatt;
+        volatile long lastUsed = System.nanoTime();
+
+        Connection(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    public interface EvictionListener {
+        void onEvicted(String deviceAddress);
+    }
+}
@@ -0,0 +1,154 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * GattFuture.java
+ * <p/>
+ * Result of a single read or write request. It is completed with the value bytes and the
+ * GATT status once the matching BluetoothGattCallback arrives, or with one of the STATUS_*
+ * constants below if the request never got an answer.
+ * <p/>
+ * Callbacks run on the thread that completes the future, usually the Bluetooth Binder thread,
+ * and must not block. Never call {@link #get()} from a BluetoothGattCallback.
+ */
+public class GattFuture implements Future<byte[]> {
+
+    // The request was not answered within the operation timeout.
+    public final static int STATUS_TIMEOUT = -1;
+    // The BluetoothGatt refused to send the request.
+    public final static int STATUS_NOT_SENT = -2;
+    // The request queue of the device was full.
+    public final static int STATUS_REJECTED = -3;
+    // The request was removed from the queue, dropped on overflow or its device disconnected.
+    public final static int STATUS_CANCELLED = -4;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<Callback> callbacks;
+    private volatile byte[] value;
+    private volatile int status;
+
+    /**
+     * Completes the future. Only the first call has an effect.
+     *
+     * @param value  value bytes of the attribute, null if the request failed.
+     * @param status BluetoothGatt.GATT_SUCCESS, another GATT status or a STATUS_* constant.
+     * @return false if the future was already complete.
+     */
+    public boolean complete(byte[] value, int status) {
+        List<Callback> pending;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.value = value;
+            this.status = status;
+            done.countDown();
+            pending = callbacks;
+            callbacks = null;
+        }
+        if (pending != null) {
+            for (Callback callback : pending) {
+                callback.onResult(value, status);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a callback that is told the result. If the future is already complete the callback
+     * runs right away on the calling thread.
+     *
+     * @return this future, so calls can be chained.
+     */
+    public GattFuture addCallback(Callback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<Callback>(1);
+                }
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        callback.onResult(value, status);
+        return this;
+    }
+
+    /**
+     * Completes the given future with the result of this one.
+     */
+    void forwardTo(final GattFuture gattFuture) {
+        addCallback(new Callback() {
+            @Override
+            public void onResult(byte[] value, int status) {
+                gattFuture.complete(value, status);
+            }
+        });
+    }
+
+    /**
+     * @return the status, only meaningful once {@link #isDone()} returns true.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return isDone() && status == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, STATUS_CANCELLED);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return isDone() && status == STATUS_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the result.
+     *
+     * @return the value bytes.
+     * @throws ExecutionException if the request did not succeed, the status is in the message.
+     */
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getValue();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getValue();
+    }
+
+    private byte[] getValue() throws ExecutionException {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            throw new ExecutionException(new IllegalStateException("GATT status " + status));
+        }
+        return value;
+    }
+
+    public interface Callback {
+        void onResult(byte[] value, int status);
+    }
+}
@@ -0,0 +1,198 @@
+package com.beele;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * LeScanFilter.java
+ * <p/>
+ * Which advertisements a {@link LeScanner} passes on. An advertisement passes if it matches
+ * every kind of criterion that was set, and for a kind with several values any one of them:
+ * <pre>
+ * new LeScanFilter().addServiceUuid(HEART_RATE_SERVICE).addNamePrefix("HRM").setMinRssi(-80)
+ * </pre>
+ * passes heart rate monitors whose name starts with HRM and that are received with -80 dBm or
+ * more. An empty filter passes everything.
+ * <p/>
+ * The scanner runs the {@link Matcher} compiled from the filter on the scan callback thread.
+ * It checks the cheap criteria first and parses the advertising data in place only if needed,
+ * so nothing is allocated for an advertisement that is dropped.
+ */
+public class LeScanFilter {
+
+    // No minimum RSSI.
+    public final static int RSSI_ANY = Integer.MIN_VALUE;
+
+    private final List<UUID> serviceUuids = new ArrayList<UUID>();
+    private final List<String> namePrefixes = new ArrayList<String>();
+    private final Set<String> addresses = new HashSet<String>();
+    private final List<Integer> manufacturerIds = new ArrayList<Integer>();
+    private int minRssi = RSSI_ANY;
+
+    /**
+     * Passes advertisements that list the service.
+     *
+     * @return this filter.
+     */
+    public LeScanFilter addServiceUuid(UUID serviceUuid) {
+        serviceUuids.add(serviceUuid);
+        return this;
+    }
+
+    /**
+     * Passes advertisements whose local name starts with the prefix. Only the name in the
+     * advertisement is looked at, not the one the system may have cached.
+     *
+     * @return this filter.
+     */
+    public LeScanFilter addNamePrefix(String namePrefix) {
+        namePrefixes.add(namePrefix);
+        return this;
+    }
+
+    /**
+     * Passes the device with the address, e.g. "00:11:22:AA:BB:CC" in upper case like
+     * BluetoothDevice.getAddress().
+     *
+     * @return this filter.
+     */
+    public LeScanFilter addAddress(String address) {
+        addresses.add(address);
+        return this;
+    }
+
+    /**
+     * Passes advertisements with manufacturer specific data of the company.
+     *
+     * @param manufacturerId Bluetooth SIG company identifier, e.g. 0x004C.
+     * @return this filter.
+     */
+    public LeScanFilter addManufacturerId(int manufacturerId) {
+        manufacturerIds.add(manufacturerId);
+        return this;
+    }
+
+    /**
+     * Drops advertisements received weaker than the given RSSI.
+     *
+     * @return this filter.
+     */
+    public LeScanFilter setMinRssi(int minRssi) {
+        this.minRssi = minRssi;
+        return this;
+    }
+
+    /**
+     * @return a matcher for the current criteria, later changes of the filter do not affect it.
+     */
+    public Matcher compile() {
+        return new Matcher(this);
+    }
+
+    /**
+     * Immutable, thread safe form of a LeScanFilter.
+     */
+    public static final class Matcher {
+
+        private final int minRssi;
+        private final Set<String> addresses;
+        private final int[] manufacturerIds;
+        private final long[] serviceUuidMostSignificantBits;
+        private final long[] serviceUuidLeastSignificantBits;
+        private final byte[][] namePrefixes;
+        private final boolean parse;
+        // One parser per scan callback thread, reused for every advertisement.
+        private final ThreadLocal<AdvertisingData> advertisingData = new ThreadLocal<AdvertisingData>() {
+            @Override
+            protected AdvertisingData initialValue() {
+                return new AdvertisingData();
+            }
+        };
+
+        private Matcher(LeScanFilter filter) {
+            minRssi = filter.minRssi;
+            addresses = filter.addresses.isEmpty() ? null : new HashSet<String>(filter.addresses);
+            manufacturerIds = new int[filter.manufacturerIds.size()];
+            for (int i = 0; i < manufacturerIds.length; i++) {
+                manufacturerIds[i] = filter.manufacturerIds.get(i);
+            }
+            serviceUuidMostSignificantBits = new long[filter.serviceUuids.size()];
+            serviceUuidLeastSignificantBits = new long[serviceUuidMostSignificantBits.length];
+            for (int i = 0; i < serviceUuidMostSignificantBits.length; i++) {
+                serviceUuidMostSignificantBits[i] = filter.serviceUuids.get(i).getMostSignificantBits();
+                serviceUuidLeastSignificantBits[i] = filter.serviceUuids.get(i).getLeastSignificantBits();
+            }
+            // Compared as UTF-8 bytes against the advertisement, without decoding it.
+            namePrefixes = new byte[filter.namePrefixes.size()][];
+            for (int i = 0; i < namePrefixes.length; i++) {
+                String namePrefix = filter.namePrefixes.get(i);
+                ByteBuffer encoded = ByteBuffer.allocate(GattCodec.getUtf8Length(namePrefix));
+                GattCodec.putUtf8(encoded, 0, namePrefix);
+                namePrefixes[i] = encoded.array();
+            }
+            parse = manufacturerIds.length > 0 || serviceUuidMostSignificantBits.length > 0 || namePrefixes.length > 0;
+        }
+
+        /**
+         * @return true if the advertisement passes the filter.
+         */
+        public boolean matches(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (rssi < minRssi) {
+                return false;
+            }
+            if (addresses != null && (device == null || !addresses.contains(device.getAddress()))) {
+                return false;
+            }
+            if (!parse) {
+                return true;
+            }
+            if (scanRecord == null) {
+                return false;
+            }
+            AdvertisingData data = advertisingData.get().wrap(scanRecord);
+            return matchesManufacturer(data) && matchesServiceUuid(data) && matchesName(data);
+        }
+
+        private boolean matchesManufacturer(AdvertisingData data) {
+            if (manufacturerIds.length == 0) {
+                return true;
+            }
+            for (int id : manufacturerIds) {
+                if (data.hasManufacturerId(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesServiceUuid(AdvertisingData data) {
+            if (serviceUuidMostSignificantBits.length == 0) {
+                return true;
+            }
+            for (int i = 0; i < serviceUuidMostSignificantBits.length; i++) {
+                if (data.hasServiceUuid(serviceUuidMostSignificantBits[i], serviceUuidLeastSignificantBits[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesName(AdvertisingData data) {
+            if (namePrefixes.length == 0) {
+                return true;
+            }
+            for (byte[] namePrefix : namePrefixes) {
+                if (data.matchesLocalName(namePrefix, true)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
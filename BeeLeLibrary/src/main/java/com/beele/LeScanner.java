@@ -0,0 +1,89 @@
+package com.beele;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * LeScanner.java
+ * <p/>
+ * Scans for advertisements and passes on those that match a {@link LeScanFilter}. The filter
+ * runs on the scan callback thread before anything else, so dropped advertisements are never
+ * posted, aggregated or allocated for. The callback is called on the same thread, e.g. a
+ * {@link ScanAggregator}.
+ * <p/>
+ * Uses BluetoothAdapter.startLeScan, which is available from API 18 and reports every
+ * advertisement, filtering is left to the LeScanFilter.
+ */
+public class LeScanner {
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private volatile LeScanFilter.Matcher matcher;
+    private volatile BluetoothAdapter.LeScanCallback callback;
+    private boolean scanning;
+    private final BluetoothAdapter.LeScanCallback filteringCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            LeScanFilter.Matcher currentMatcher = matcher;
+            BluetoothAdapter.LeScanCallback currentCallback = callback;
+            if (currentCallback == null || currentMatcher != null && !currentMatcher.matches(device, rssi, scanRecord)) {
+                return;
+            }
+            currentCallback.onLeScan(device, rssi, scanRecord);
+        }
+    };
+
+    public LeScanner(BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    /**
+     * Starts scanning, or replaces the filter and callback of the running scan.
+     *
+     * @param filter   the advertisements to pass on, null for all.
+     * @param callback told every advertisement that passes the filter, on the scan callback thread.
+     * @return false if the scan could not be started.
+     */
+    public boolean start(LeScanFilter filter, BluetoothAdapter.LeScanCallback callback) {
+        return start(filter == null ? null : filter.compile(), callback);
+    }
+
+    /**
+     * Starts scanning with a filter that was compiled before, e.g. once for many scans.
+     *
+     * @param matcher  the advertisements to pass on, null for all.
+     * @param callback told every advertisement that passes the filter, on the scan callback thread.
+     * @return false if the scan could not be started.
+     */
+    synchronized boolean start(LeScanFilter.Matcher matcher, BluetoothAdapter.LeScanCallback callback) {
+        this.matcher = matcher;
+        this.callback = callback;
+        if (scanning) {
+            return true;
+        }
+        try {
+            scanning = bluetoothAdapter.startLeScan(filteringCallback);
+        } catch (Exception e) {
+            scanning = false;
+        }
+        return scanning;
+    }
+
+    /**
+     * Stops scanning and passing on advertisements.
+     */
+    public synchronized void stop() {
+        callback = null;
+        if (!scanning) {
+            return;
+        }
+        scanning = false;
+        try {
+            bluetoothAdapter.stopLeScan(filteringCallback);
+        } catch (Exception e) {
+        }
+    }
+
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+}
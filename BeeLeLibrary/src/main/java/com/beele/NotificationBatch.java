@@ -0,0 +1,114 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * NotificationBatch.java
+ * <p/>
+ * Notifications of one characteristic gathered into a single callback. The values are stored
+ * back to back in one array: value {@code i} is {@link #getLength(int)} bytes at
+ * {@link #getOffset(int)} of {@link #getData()}.
+ * <p/>
+ * The batch is reused for the next one once {@link BatchHandler#onBatch(NotificationBatch)}
+ * returns, so keep copies of the values, not the batch.
+ */
+public class NotificationBatch {
+
+    private BluetoothGatt bluetoothGatt;
+    private BluetoothGattCharacteristic characteristic;
+    private byte[] data;
+    private int dataLength;
+    // offsets[i] is where value i starts, offsets[size] where the next one would.
+    private final int[] offsets;
+    private final long[] timestamps;
+    private int size;
+
+    NotificationBatch(int capacity, int valueLength) {
+        offsets = new int[capacity + 1];
+        timestamps = new long[capacity];
+        data = new byte[capacity * valueLength];
+    }
+
+    public BluetoothGatt getBluetoothGatt() {
+        return bluetoothGatt;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * @return the number of notifications in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the array holding every value of the batch, shared and only valid during onBatch.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset(int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        checkIndex(index);
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtimeNanos() when the notification arrived.
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    /**
+     * @return a copy of the value of the notification.
+     */
+    public byte[] getValue(int index) {
+        byte[] value = new byte[getLength(index)];
+        System.arraycopy(data, offsets[index], value, 0, value.length);
+        return value;
+    }
+
+    boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    void add(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, byte[] buffer, int length, long timestamp) {
+        this.bluetoothGatt = bluetoothGatt;
+        this.characteristic = characteristic;
+        if (dataLength + length > data.length) {
+            byte[] grown = new byte[Math.max(data.length * 2, dataLength + length)];
+            System.arraycopy(data, 0, grown, 0, dataLength);
+            data = grown;
+        }
+        System.arraycopy(buffer, 0, data, dataLength, length);
+        dataLength += length;
+        timestamps[size] = timestamp;
+        offsets[++size] = dataLength;
+    }
+
+    void clear() {
+        size = 0;
+        dataLength = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+
+    public interface BatchHandler {
+        void onBatch(NotificationBatch batch);
+    }
+}
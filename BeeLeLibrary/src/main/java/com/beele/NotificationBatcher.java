@@ -0,0 +1,97 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * NotificationBatcher.java
+ * <p/>
+ * Notification handler that gathers the notifications of a characteristic into a
+ * {@link NotificationBatch}. The batch goes to the BatchHandler once it holds
+ * {@code batchSize} notifications or {@code batchWindow} milliseconds after its first one,
+ * whichever comes first. The batch and its arrays are reused, so a steady stream of
+ * notifications does not allocate.
+ */
+class NotificationBatcher implements SubscriptionRegistry.NotificationHandler, SubscriptionRegistry.Subscriber {
+
+    // Room for a notification of the default ATT MTU, the batch grows for longer ones.
+    private final static int DEFAULT_VALUE_LENGTH = 20;
+
+    private final NotificationBatch.BatchHandler batchHandler;
+    private final NotificationDispatcher notificationDispatcher;
+    private final long batchWindow;
+    private final NotificationBatch batch;
+    // Counts the batches, so a window that ends after its batch was flushed is ignored.
+    private long generation;
+
+    /**
+     * @param batchSize   notifications per batch.
+     * @param batchWindow milliseconds after the first notification of a batch until it is
+     *                    delivered even if not full, 0 to wait until it is full.
+     */
+    NotificationBatcher(NotificationBatch.BatchHandler batchHandler, NotificationDispatcher notificationDispatcher,
+                        int batchSize, long batchWindow) {
+        this.batchHandler = batchHandler;
+        this.notificationDispatcher = notificationDispatcher;
+        this.batchWindow = batchWindow;
+        this.batch = new NotificationBatch(Math.max(1, batchSize), DEFAULT_VALUE_LENGTH);
+    }
+
+    @Override
+    public void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        add(gatt, characteristic, value, value.length, SystemClock.elapsedRealtimeNanos());
+    }
+
+    @Override
+    public void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp) {
+        add(gatt, characteristic, value.array(), value.length(), timestamp);
+    }
+
+    synchronized void add(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, byte[] buffer, int length, long timestamp) {
+        batch.add(bluetoothGatt, characteristic, buffer, length, timestamp);
+        if (batch.isFull()) {
+            deliver();
+        } else if (batch.size() == 1 && batchWindow > 0) {
+            scheduleWindow(generation);
+        }
+    }
+
+    private void scheduleWindow(final long windowGeneration) {
+        SharedScheduler.schedule(new ScheduledTask() {
+            @Override
+            public void run() {
+                // The handler runs on the executor of the notifications, not on the timer.
+                try {
+                    notificationDispatcher.getCurrentExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush(windowGeneration);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                }
+            }
+        }, batchWindow);
+    }
+
+    /**
+     * Delivers the batch of the given window if it was not delivered yet, -1 for any batch.
+     */
+    synchronized void flush(long windowGeneration) {
+        if (batch.size() > 0 && (windowGeneration < 0 || windowGeneration == generation)) {
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        generation++;
+        try {
+            batchHandler.onBatch(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NotificationDispatcher.java
+ * <p/>
+ * Moves notifications off the Bluetooth Binder thread. The Binder callback only copies the
+ * value into a slot of a preallocated ring buffer, which takes the same short time however
+ * slow the consumers are. The value is copied once, into a {@link PooledValue} that is
+ * handed to the consumers on the executor and goes back to its pool afterwards. The consumers
+ * are called one notification after the other in the order they arrived.
+ * <p/>
+ * When the consumers fall so far behind that the buffer is full, new notifications are
+ * dropped and their number is reported to the {@link OverrunListener} on the executor.
+ */
+public class NotificationDispatcher {
+
+    // Slots of the ring buffer, rounded up to a power of two. Applies to dispatchers created afterwards.
+    public static int BUFFER_SIZE = 256;
+
+    private final Slot[] slots;
+    private final int mask;
+    // Next slot to write and next slot to read, guarded by this.
+    private long head;
+    private long tail;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicInteger overruns = new AtomicInteger();
+    private final Consumer consumer;
+    private volatile Executor executor;
+    private volatile OverrunListener overrunListener;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    NotificationDispatcher(Consumer consumer) {
+        this.consumer = consumer;
+        int size = Integer.highestOneBit(Math.max(2, BUFFER_SIZE) * 2 - 1);
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Sets the executor the consumers are called on. By default they are called on the
+     * notification thread of the SharedScheduler. A multi-threaded executor is fine, only one drain runs at a time.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setOverrunListener(OverrunListener overrunListener) {
+        this.overrunListener = overrunListener;
+    }
+
+    /**
+     * @return the number of slots of the ring buffer.
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Copies the notification into the ring buffer. Called on the Binder thread.
+     *
+     * @return false if the buffer was full and the notification was dropped.
+     */
+    boolean offer(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        boolean accepted;
+        synchronized (this) {
+            accepted = head - tail < slots.length;
+            if (!accepted) {
+                overruns.incrementAndGet();
+            } else {
+                Slot slot = slots[(int) head & mask];
+                slot.bluetoothGatt = bluetoothGatt;
+                slot.characteristic = characteristic;
+                slot.value = value == null ? PooledValue.obtain(0) : PooledValue.copyOf(value);
+                slot.timestamp = SystemClock.elapsedRealtimeNanos();
+                head++;
+            }
+        }
+        scheduleDrain();
+        return accepted;
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            getExecutor().execute(drain);
+        } catch (RejectedExecutionException e) {
+            // Tried again with the next notification.
+            draining.set(false);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Slot slot;
+            synchronized (this) {
+                slot = head == tail ? null : slots[(int) tail & mask];
+            }
+            reportOverruns();
+            if (slot == null) {
+                draining.set(false);
+                // A notification offered while this drain was ending did not schedule another one.
+                synchronized (this) {
+                    if (head == tail) {
+                        return;
+                    }
+                }
+                if (!draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            // The slot is not written again before tail moves past it.
+            try {
+                consumer.onNotification(slot.bluetoothGatt, slot.characteristic, slot.value, slot.timestamp);
+            } catch (RuntimeException e) {
+                // A failing consumer must not stop the notifications of the others.
+            }
+            synchronized (this) {
+                slot.value.release();
+                slot.value = null;
+                slot.bluetoothGatt = null;
+                slot.characteristic = null;
+                tail++;
+            }
+        }
+    }
+
+    private void reportOverruns() {
+        if (overruns.get() == 0) {
+            return;
+        }
+        int dropped = overruns.getAndSet(0);
+        OverrunListener listener = overrunListener;
+        if (dropped > 0 && listener != null) {
+            listener.onOverrun(dropped);
+        }
+    }
+
+    private Executor getExecutor() {
+        Executor current = executor;
+        if (current != null) {
+            return current;
+        }
+        return SharedScheduler.getNotificationExecutor();
+    }
+
+    private static class Slot {
+        PooledValue value;
+        long timestamp;
+        BluetoothGatt bluetoothGatt;
+        BluetoothGattCharacteristic characteristic;
+    }
+
+    /**
+     * @return the executor the consumers are called on.
+     */
+    Executor getCurrentExecutor() {
+        return getExecutor();
+    }
+
+    interface Consumer {
+        /**
+         * @param value     released when the call returns.
+         * @param timestamp SystemClock.elapsedRealtimeNanos() when the notification arrived.
+         */
+        void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp);
+    }
+
+    public interface OverrunListener {
+        /**
+         * @param dropped notifications dropped since the last report.
+         */
+        void onOverrun(int dropped);
+    }
+}
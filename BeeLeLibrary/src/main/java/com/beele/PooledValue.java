@@ -0,0 +1,146 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PooledValue.java
+ * <p/>
+ * Reference counted attribute value taken from a process wide pool. Each value length has its
+ * own pool, so the backing array is always exactly as long as the value. A write copies it
+ * once when it is sent, since the characteristic keeps the array it was given. Once the last reference is released the value goes
+ * back to its pool, so a steady stream of values of the same length does not allocate.
+ * <p/>
+ * The library releases the references it holds itself. Whoever keeps a value it was given
+ * beyond the callback calls {@link #retain()} and later {@link #release()}, and must not use
+ * the value after releasing it.
+ */
+public final class PooledValue {
+
+    // Longest value that is pooled, longer ones are allocated and left to the garbage collector.
+    public final static int MAX_POOLED_LENGTH = 512;
+    // Free values kept per length.
+    public static int POOL_SIZE = 16;
+
+    private static final PooledValue[][] pools = new PooledValue[MAX_POOLED_LENGTH + 1][];
+    private static final int[] poolCounts = new int[MAX_POOLED_LENGTH + 1];
+
+    private final byte[] array;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger();
+
+    private PooledValue(int length) {
+        array = new byte[length];
+        buffer = ByteBuffer.wrap(array);
+    }
+
+    /**
+     * Takes a value of the given length from the pool, its content is undefined.
+     *
+     * @return the value, holding one reference.
+     */
+    public static PooledValue obtain(int length) {
+        PooledValue pooledValue = null;
+        if (length <= MAX_POOLED_LENGTH) {
+            synchronized (poolCounts) {
+                int count = poolCounts[length];
+                if (count > 0) {
+                    poolCounts[length] = --count;
+                    pooledValue = pools[length][count];
+                    pools[length][count] = null;
+                }
+            }
+        }
+        if (pooledValue == null) {
+            pooledValue = new PooledValue(length);
+        }
+        pooledValue.references.set(1);
+        return pooledValue;
+    }
+
+    /**
+     * Takes a value from the pool and copies the given bytes into it.
+     *
+     * @return the value, holding one reference.
+     */
+    public static PooledValue copyOf(byte[] value, int offset, int length) {
+        PooledValue pooledValue = obtain(length);
+        System.arraycopy(value, offset, pooledValue.array, 0, length);
+        return pooledValue;
+    }
+
+    public static PooledValue copyOf(byte[] value) {
+        return copyOf(value, 0, value.length);
+    }
+
+    public int length() {
+        return array.length;
+    }
+
+    /**
+     * @return the value as a buffer from position 0 to its length. The buffer is shared by
+     * all holders of the value: read it with absolute gets or take a duplicate() for a cursor.
+     */
+    public ByteBuffer buffer() {
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return the backing array, exactly {@link #length()} bytes long.
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * Adds a reference, e.g. to keep the value after the callback that received it.
+     *
+     * @return this value.
+     */
+    public PooledValue retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.decrementAndGet();
+            throw new IllegalStateException("PooledValue was already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference, the last one returns the value to its pool.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining > 0) {
+            return;
+        }
+        if (remaining < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("PooledValue was already released");
+        }
+        int length = array.length;
+        if (length > MAX_POOLED_LENGTH) {
+            return;
+        }
+        synchronized (poolCounts) {
+            int count = poolCounts[length];
+            if (pools[length] == null) {
+                pools[length] = new PooledValue[Math.max(1, POOL_SIZE)];
+            }
+            if (count < pools[length].length) {
+                pools[length][count] = this;
+                poolCounts[length] = count + 1;
+            }
+        }
+    }
+
+    public interface ValueHandler {
+        /**
+         * @param value released when the call returns, retain() it to keep it longer.
+         */
+        void onValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value);
+    }
+}
@@ -0,0 +1,369 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ProcessLane.java
+ * <p/>
+ * Serialized queue of requests for a single BLE device. Only one request of a lane is
+ * waiting for its BluetoothGattCallback at a time, while different lanes run independently.
+ * <p/>
+ * Requests are added from any thread without locking: the queue is a lock-free linked
+ * queue and the in flight slot is claimed with compare-and-set, so whichever thread
+ * finds the lane idle sends the next request.
+ * <p/>
+ * The queue holds at most {@code capacity} requests. What happens to a request that does not
+ * fit is decided by the overflow policy of {@link ProcessQueueExecutor}.
+ * <p/>
+ * Queued reads and writes are indexed by attribute, so a repeated read of the same attribute
+ * is merged into the queued one and a newer write replaces the value of the queued one.
+ * <p/>
+ * Every priority has its own queue. The most urgent non-empty queue is served first, but a
+ * queue that was passed over STARVATION_LIMIT times is served next, so background requests
+ * keep moving and an urgent request waits for at most one request of each lower priority.
+ */
+class ProcessLane {
+
+    // Marks the in flight slot while a thread is taking the next request from the queue.
+    private static final ReadWriteCharacteristic CLAIMING = new ReadWriteCharacteristic();
+
+    private final String deviceAddress;
+    private final List<Queue<ReadWriteCharacteristic>> processQueues = createQueues();
+    // Number of times each priority was passed over while it had queued requests.
+    private final int[] skipped = new int[ProcessQueueExecutor.PRIORITY_COUNT];
+    private final AtomicInteger processCount = new AtomicInteger();
+    private final AtomicReference<ReadWriteCharacteristic> inFlightProcess = new AtomicReference<ReadWriteCharacteristic>();
+    // Last request sent in ProcessQueueExecutor.MODE_FIXED_DELAY, answered by the next callback.
+    private final AtomicReference<ReadWriteCharacteristic> sentProcess = new AtomicReference<ReadWriteCharacteristic>();
+    // One permit per free slot, so a full queue is detected without locking.
+    private final Semaphore freeSlots;
+    private final int capacity;
+    private final AtomicBoolean congested = new AtomicBoolean();
+    // While paused, e.g. during a reconnect, requests are queued but not sent.
+    private volatile boolean paused;
+    // The BluetoothGatt requests are sent through, replaced after a reconnect.
+    private volatile BluetoothGatt bluetoothGatt;
+    // Latest queued coalescable read / write for each attribute.
+    private final ConcurrentMap<Object, ReadWriteCharacteristic> pendingReads = new ConcurrentHashMap<Object, ReadWriteCharacteristic>();
+    private final ConcurrentMap<Object, ReadWriteCharacteristic> pendingWrites = new ConcurrentHashMap<Object, ReadWriteCharacteristic>();
+
+    ProcessLane(String deviceAddress, int capacity) {
+        this.deviceAddress = deviceAddress;
+        this.capacity = capacity;
+        this.freeSlots = new Semaphore(capacity);
+    }
+
+    private static List<Queue<ReadWriteCharacteristic>> createQueues() {
+        List<Queue<ReadWriteCharacteristic>> queues = new ArrayList<Queue<ReadWriteCharacteristic>>(ProcessQueueExecutor.PRIORITY_COUNT);
+        for (int i = 0; i < ProcessQueueExecutor.PRIORITY_COUNT; i++) {
+            queues.add(new ConcurrentLinkedQueue<ReadWriteCharacteristic>());
+        }
+        return queues;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * @return the current BluetoothGatt of the device, null until the first resume.
+     */
+    public BluetoothGatt getBluetoothGatt() {
+        return bluetoothGatt;
+    }
+
+    public void setBluetoothGatt(BluetoothGatt bluetoothGatt) {
+        this.bluetoothGatt = bluetoothGatt;
+    }
+
+    /**
+     * @return true if nothing is queued or waiting for a callback.
+     */
+    public boolean isIdle() {
+        return inFlightProcess.get() == null && isEmpty();
+    }
+
+    /**
+     * Adds the request, merging it into a queued request for the same attribute when possible
+     * and applying the overflow policy if the lane is full.
+     *
+     * @param overflowPolicy one of the ProcessQueueExecutor.OVERFLOW_* constants.
+     * @return false if the request was rejected.
+     */
+    public boolean add(ReadWriteCharacteristic readWriteCharacteristic, int overflowPolicy) {
+        if (ProcessQueueExecutor.COALESCE_REQUESTS && merge(readWriteCharacteristic)) {
+            readWriteCharacteristic.recycle();
+            return true;
+        }
+        if (!freeSlots.tryAcquire()) {
+            if (overflowPolicy == ProcessQueueExecutor.OVERFLOW_BLOCK) {
+                try {
+                    freeSlots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } else if (overflowPolicy == ProcessQueueExecutor.OVERFLOW_DROP_OLDEST) {
+                do {
+                    ReadWriteCharacteristic dropped = pollLeastUrgent();
+                    if (dropped != null) {
+                        dropped.complete(null, GattFuture.STATUS_CANCELLED);
+                    }
+                } while (!freeSlots.tryAcquire());
+            } else if (overflowPolicy == ProcessQueueExecutor.OVERFLOW_COALESCE) {
+                if (!merge(readWriteCharacteristic)) {
+                    return false;
+                }
+                readWriteCharacteristic.recycle();
+                return true;
+            } else {
+                return false;
+            }
+        }
+        // Later requests must not be merged across this one, e.g. a read queued behind a write
+        // has to see the written value.
+        Object attribute = readWriteCharacteristic.getAttribute();
+        (readWriteCharacteristic.isWrite() ? pendingReads : pendingWrites).remove(attribute);
+        if (readWriteCharacteristic.isCoalescable()) {
+            getPending(readWriteCharacteristic).put(attribute, readWriteCharacteristic);
+        } else {
+            getPending(readWriteCharacteristic).remove(attribute);
+        }
+        processQueues.get(readWriteCharacteristic.getPriority()).offer(readWriteCharacteristic);
+        int depth = processCount.incrementAndGet();
+        if (depth >= capacity - capacity / 4 && congested.compareAndSet(false, true)) {
+            ProcessQueueExecutor.notifyQueueDepth(deviceAddress, depth, capacity, true);
+        }
+        return true;
+    }
+
+    public void remove(ReadWriteCharacteristic readWriteCharacteristic) {
+        if (processQueues.get(readWriteCharacteristic.getPriority()).remove(readWriteCharacteristic)) {
+            onRemoved(readWriteCharacteristic);
+            readWriteCharacteristic.complete(null, GattFuture.STATUS_CANCELLED);
+        }
+    }
+
+    /**
+     * Removes the next request to send regardless of the in flight one. Used directly by
+     * {@link ProcessQueueExecutor#MODE_FIXED_DELAY}.
+     */
+    public ReadWriteCharacteristic poll() {
+        ReadWriteCharacteristic readWriteCharacteristic = pollNext();
+        if (readWriteCharacteristic != null) {
+            onRemoved(readWriteCharacteristic);
+        }
+        return readWriteCharacteristic;
+    }
+
+    private synchronized ReadWriteCharacteristic pollNext() {
+        int selected = -1;
+        for (int priority = 0; priority < processQueues.size(); priority++) {
+            if (processQueues.get(priority).isEmpty()) {
+                skipped[priority] = 0;
+            } else if (selected < 0) {
+                selected = priority;
+            } else if (skipped[priority] >= ProcessQueueExecutor.STARVATION_LIMIT) {
+                // Starving, serve it ahead of the more urgent ones this time.
+                skipped[selected]++;
+                selected = priority;
+            } else {
+                skipped[priority]++;
+            }
+        }
+        if (selected < 0) {
+            return null;
+        }
+        skipped[selected] = 0;
+        return processQueues.get(selected).poll();
+    }
+
+    private ReadWriteCharacteristic pollLeastUrgent() {
+        for (int priority = processQueues.size() - 1; priority >= 0; priority--) {
+            ReadWriteCharacteristic readWriteCharacteristic = processQueues.get(priority).poll();
+            if (readWriteCharacteristic != null) {
+                onRemoved(readWriteCharacteristic);
+                return readWriteCharacteristic;
+            }
+        }
+        return null;
+    }
+
+    private boolean isEmpty() {
+        for (Queue<ReadWriteCharacteristic> processQueue : processQueues) {
+            if (!processQueue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onRemoved(ReadWriteCharacteristic readWriteCharacteristic) {
+        readWriteCharacteristic.markDispatched();
+        getPending(readWriteCharacteristic).remove(readWriteCharacteristic.getAttribute(), readWriteCharacteristic);
+        int depth = processCount.decrementAndGet();
+        freeSlots.release();
+        if (depth <= capacity / 4 && congested.compareAndSet(true, false)) {
+            ProcessQueueExecutor.notifyQueueDepth(deviceAddress, depth, capacity, false);
+        }
+    }
+
+    private boolean merge(ReadWriteCharacteristic readWriteCharacteristic) {
+        if (!readWriteCharacteristic.isCoalescable()) {
+            return false;
+        }
+        ReadWriteCharacteristic queued = getPending(readWriteCharacteristic).get(readWriteCharacteristic.getAttribute());
+        return queued != null && queued.merge(readWriteCharacteristic);
+    }
+
+    private ConcurrentMap<Object, ReadWriteCharacteristic> getPending(ReadWriteCharacteristic readWriteCharacteristic) {
+        return readWriteCharacteristic.isWrite() ? pendingWrites : pendingReads;
+    }
+
+    /**
+     * @return true if a request is queued and could be moved in flight now.
+     */
+    public boolean canStartNext() {
+        return !paused && inFlightProcess.get() == null && !isEmpty();
+    }
+
+    /**
+     * Moves the first queued request in flight.
+     *
+     * @param timeout task that releases the request if its callback never arrives.
+     * @return the request to send, or null if the lane is busy or empty.
+     */
+    public ReadWriteCharacteristic startNext(ScheduledTask timeout) {
+        while (!paused && !isEmpty() && inFlightProcess.compareAndSet(null, CLAIMING)) {
+            ReadWriteCharacteristic readWriteCharacteristic = poll();
+            if (readWriteCharacteristic != null) {
+                readWriteCharacteristic.timeoutTask = timeout;
+                inFlightProcess.set(readWriteCharacteristic);
+                return readWriteCharacteristic;
+            }
+            // Another thread emptied the queue, give the slot back and look again
+            // in case a request was added after the poll.
+            inFlightProcess.set(null);
+        }
+        return null;
+    }
+
+    /**
+     * Remembers a request sent without waiting for its callback, so that the callback can
+     * still complete its future. A previous request that was not answered until now is
+     * completed with GattFuture.STATUS_TIMEOUT.
+     */
+    public void setSent(ReadWriteCharacteristic readWriteCharacteristic) {
+        ReadWriteCharacteristic unanswered = sentProcess.getAndSet(readWriteCharacteristic);
+        if (unanswered != null) {
+            unanswered.complete(null, GattFuture.STATUS_TIMEOUT);
+        }
+    }
+
+    /**
+     * Releases the in flight request if it matches the answered attribute.
+     *
+     * @param object BluetoothGattCharacteristic or BluetoothGattDescriptor that was answered.
+     * @return the released request, or null if none matched.
+     */
+    public ReadWriteCharacteristic complete(Object object) {
+        ReadWriteCharacteristic readWriteCharacteristic = inFlightProcess.get();
+        if (readWriteCharacteristic != null && readWriteCharacteristic != CLAIMING
+                && readWriteCharacteristic.getAttribute() == object) {
+            return release(readWriteCharacteristic) ? readWriteCharacteristic : null;
+        }
+        readWriteCharacteristic = sentProcess.get();
+        if (readWriteCharacteristic != null && readWriteCharacteristic.getAttribute() == object
+                && sentProcess.compareAndSet(readWriteCharacteristic, null)) {
+            return readWriteCharacteristic;
+        }
+        return null;
+    }
+
+    /**
+     * Releases the in flight request if it is still guarded by the given timeout.
+     *
+     * @return the request that timed out, or null if it was answered in the meantime.
+     */
+    public ReadWriteCharacteristic timeout(ScheduledTask timeout) {
+        ReadWriteCharacteristic readWriteCharacteristic = inFlightProcess.get();
+        if (readWriteCharacteristic == null || readWriteCharacteristic.timeoutTask != timeout) {
+            return null;
+        }
+        return release(readWriteCharacteristic) ? readWriteCharacteristic : null;
+    }
+
+    /**
+     * Puts a request that failed back at the end of its priority queue so it is retried
+     * after the requests queued in the meantime. It is not indexed for merging again.
+     *
+     * @return false if the lane is full.
+     */
+    public boolean requeue(ReadWriteCharacteristic readWriteCharacteristic) {
+        if (!freeSlots.tryAcquire()) {
+            return false;
+        }
+        processQueues.get(readWriteCharacteristic.getPriority()).offer(readWriteCharacteristic);
+        processCount.incrementAndGet();
+        return true;
+    }
+
+    public void clear() {
+        ReadWriteCharacteristic readWriteCharacteristic;
+        while ((readWriteCharacteristic = pollLeastUrgent()) != null) {
+            readWriteCharacteristic.complete(null, GattFuture.STATUS_CANCELLED);
+        }
+        readWriteCharacteristic = inFlightProcess.get();
+        if (readWriteCharacteristic != null && readWriteCharacteristic != CLAIMING
+                && release(readWriteCharacteristic)) {
+            readWriteCharacteristic.complete(null, GattFuture.STATUS_CANCELLED);
+        }
+        readWriteCharacteristic = sentProcess.getAndSet(null);
+        if (readWriteCharacteristic != null) {
+            readWriteCharacteristic.complete(null, GattFuture.STATUS_CANCELLED);
+        }
+    }
+
+    public int size() {
+        return processCount.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Frees the in flight slot held by the request.
+     *
+     * @return false if the request was not in flight any more.
+     */
+    boolean release(ReadWriteCharacteristic readWriteCharacteristic) {
+        if (!inFlightProcess.compareAndSet(readWriteCharacteristic, null)) {
+            return false;
+        }
+        if (readWriteCharacteristic.timeoutTask != null) {
+            readWriteCharacteristic.timeoutTask.cancel();
+            readWriteCharacteristic.timeoutTask = null;
+        }
+        return true;
+    }
+}
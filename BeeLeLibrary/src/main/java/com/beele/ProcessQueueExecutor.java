@@ -3,36 +3,112 @@ package com.beele;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * ProcessQueueExecutor.java
  * <p/>
  * This class is used to execute the read,write and write descriptor request one
- * by one based on EXECUTE_DELAY.
+ * by one for each device, while the devices are served in parallel. In
+ * {@link #MODE_FIXED_DELAY} a request is sent every EXECUTE_DELAY, in
+ * {@link #MODE_COMPLETION} the next request is sent as soon as the previous one is
+ * answered by the BluetoothGattCallback, or after OPERATION_TIMEOUT if it never is.
+ * <p/>
+ * The queues are shared by the whole process and all timing runs on the {@link SharedScheduler},
+ * which has nothing scheduled while no request is queued or in flight.
  */
-public class ProcessQueueExecutor extends Thread {
+public class ProcessQueueExecutor {
 
     public final static int REQUEST_TYPE_READ_CHAR = 1;
     public final static int REQUEST_TYPE_WRITE_CHAR = 2;
     public final static int REQUEST_TYPE_READ_DESCRIPTOR = 3;
     public final static int REQUEST_TYPE_WRITE_DESCRIPTOR = 4;
+    // Request priorities, most urgent first. User triggered commands and notification setup
+    // should be PRIORITY_HIGH, bulk telemetry PRIORITY_LOW.
+    public final static int PRIORITY_HIGH = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    public final static int PRIORITY_LOW = 2;
+    final static int PRIORITY_COUNT = 3;
+    // Send one request every EXECUTE_DELAY, whether or not the last one has finished.
+    public final static int MODE_FIXED_DELAY = 1;
+    // Send the next request when the GATT callback of the previous one arrives.
+    public final static int MODE_COMPLETION = 2;
+    public static int EXECUTE_MODE = MODE_COMPLETION;
     public static long EXECUTE_DELAY = 1000;// delay in execution
-    private static List<ReadWriteCharacteristic> processList = new ArrayList<ReadWriteCharacteristic>();
-    Timer processQueueTimer = new Timer();
+    public static long OPERATION_TIMEOUT = 5000;// fallback when a callback never arrives
+    // Retries of a request that timed out, was not sent or failed with a transient GATT error.
+    // A retry waits a random delay between half and all of RETRY_BACKOFF * 2^(attempt - 1),
+    // capped at RETRY_BACKOFF_MAX, while the rest of the lane keeps running.
+    public static int MAX_RETRIES = 2;
+    public static long RETRY_BACKOFF = 250;
+    public static long RETRY_BACKOFF_MAX = 8000;
+    // GATT_ERROR (133), reported by many stacks for transient link problems.
+    private final static int GATT_ERROR = 0x85;
+    // What addProcess does when the lane of a device already holds QUEUE_CAPACITY requests.
+    // Wait for a free slot. Never use it from a BluetoothGattCallback.
+    public final static int OVERFLOW_BLOCK = 1;
+    // Refuse the new request.
+    public final static int OVERFLOW_REJECT = 2;
+    // Discard the oldest queued request to make room.
+    public final static int OVERFLOW_DROP_OLDEST = 3;
+    // Merge into a queued request for the same attribute even if COALESCE_REQUESTS is off,
+    // otherwise refuse.
+    public final static int OVERFLOW_COALESCE = 4;
+    public static int OVERFLOW_POLICY = OVERFLOW_REJECT;
+    // Merge a read into a queued read of the same attribute and let a write replace the value
+    // of a queued write, unless the request opted out with setCoalescable(false).
+    public static boolean COALESCE_REQUESTS = true;
+    // How many times a priority with queued requests may be passed over before it is served.
+    public static int STARVATION_LIMIT = 4;
+    public static int QUEUE_CAPACITY = 256;// per device, applies to lanes created afterwards
+    private static volatile QueueDepthListener queueDepthListener;
+    // One serialized lane per device address, keyed like BluetoothLe.bluetoothGattHashMap.
+    private static final ConcurrentMap<String, ProcessLane> processLanes = new ConcurrentHashMap<String, ProcessLane>();
+    private static final Random retryJitter = new Random();
+    // Set while a tick of MODE_FIXED_DELAY is scheduled, no tick is scheduled while all lanes are empty.
+    private static final AtomicBoolean tickScheduled = new AtomicBoolean();
+    private static volatile long lastTick;
 
     /**
      * Adds the request to ProcessQueueExecutor
      *
      * @param readWriteCharacteristic
+     * @return false if the queue of the device is full and OVERFLOW_POLICY refused the request.
      */
-    public static void addProcess(
+    public static boolean addProcess(
             ReadWriteCharacteristic readWriteCharacteristic) {
-        processList.add(readWriteCharacteristic);
+        ProcessLane processLane = getLane(readWriteCharacteristic.getBluetoothGatt(), true);
+        if (!processLane.add(readWriteCharacteristic, OVERFLOW_POLICY)) {
+            return false;
+        }
+        if (EXECUTE_MODE == MODE_COMPLETION) {
+            executeNextProcess(processLane);
+        } else {
+            scheduleTick();
+        }
+        return true;
+    }
+
+    /**
+     * Registers the listener that is told when the queue of a device fills up or drains.
+     *
+     * @param listener the listener, or null to remove it.
+     */
+    public static void setQueueDepthListener(QueueDepthListener listener) {
+        queueDepthListener = listener;
+    }
+
+    static void notifyQueueDepth(String deviceAddress, int depth, int capacity, boolean congested) {
+        QueueDepthListener listener = queueDepthListener;
+        if (listener != null) {
+            listener.onQueueDepthChanged(deviceAddress, depth, capacity, congested);
+        }
     }
 
     /**
@@ -42,77 +118,328 @@ public class ProcessQueueExecutor extends Thread {
      */
     public static void removeProcess(
             ReadWriteCharacteristic readWriteCharacteristic) {
-        processList.remove(readWriteCharacteristic);
+        ProcessLane processLane = getLane(readWriteCharacteristic.getBluetoothGatt(), false);
+        if (processLane != null) {
+            processLane.remove(readWriteCharacteristic);
+        }
     }
 
-    public void executeProcess() {
+    /**
+     * Drops every request queued for the device, e.g. after it was disconnected.
+     *
+     * @param bluetoothGatt BluetoothGatt object of the device.
+     */
+    public static void clearProcess(BluetoothGatt bluetoothGatt) {
+        clearProcess(getAddress(bluetoothGatt));
+    }
 
-        if (!processList.isEmpty()) {
-            ReadWriteCharacteristic readWriteCharacteristic = processList
-                    .get(0);
-            int type = readWriteCharacteristic.getRequestType();
-            BluetoothGatt bluetoothGatt = readWriteCharacteristic
-                    .getBluetoothGatt();
-            Object parseObject = readWriteCharacteristic.getObject();
+    /**
+     * Drops every request queued for the device.
+     *
+     * @param deviceAddress address of the device.
+     */
+    public static void clearProcess(String deviceAddress) {
+        ProcessLane processLane = processLanes.remove(deviceAddress);
+        if (processLane != null) {
+            processLane.clear();
+        }
+    }
 
-            if (type == REQUEST_TYPE_READ_CHAR) {
-                BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) parseObject;
-                try {
-                    bluetoothGatt.readCharacteristic(characteristic);
-                } catch (Exception e) {
-                }
-            } else if (type == REQUEST_TYPE_WRITE_CHAR) {
-                BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) parseObject;
-                try {
-                    bluetoothGatt.writeCharacteristic(characteristic);
-                } catch (Exception e) {
+    /**
+     * Holds back the requests of the device, e.g. while it reconnects. They stay queued and
+     * are sent after {@link #resumeProcess(BluetoothGatt)}.
+     *
+     * @param deviceAddress address of the device.
+     */
+    public static void pauseProcess(String deviceAddress) {
+        getLane(deviceAddress, true).setPaused(true);
+    }
+
+    /**
+     * Sends the queued requests of the device through the given BluetoothGatt, which may be a
+     * new one after a reconnect. Call it once the services of the device were discovered.
+     *
+     * @param bluetoothGatt BluetoothGatt object of the device.
+     */
+    public static void resumeProcess(BluetoothGatt bluetoothGatt) {
+        ProcessLane processLane = getLane(getAddress(bluetoothGatt), true);
+        processLane.setBluetoothGatt(bluetoothGatt);
+        processLane.setPaused(false);
+        if (EXECUTE_MODE == MODE_COMPLETION) {
+            executeNextProcess(processLane);
+        } else {
+            scheduleTick();
+        }
+    }
+
+    /**
+     * @return true if the device has no request queued or waiting for a callback.
+     */
+    public static boolean isIdle(String deviceAddress) {
+        ProcessLane processLane = processLanes.get(deviceAddress);
+        return processLane == null || processLane.isIdle();
+    }
+
+    /**
+     * Marks the in flight request of the device as finished, completes its future, recycles
+     * it and, in MODE_COMPLETION, sends the next one. Called from the BluetoothGattCallback for every read / write response.
+     *
+     * @param bluetoothGatt BluetoothGatt object of the device that answered.
+     * @param object        BluetoothGattCharacteristic or BluetoothGattDescriptor that was answered.
+     * @param value         value of the attribute after the response.
+     * @param status        GATT status of the response.
+     */
+    public static void onProcessComplete(BluetoothGatt bluetoothGatt, Object object, byte[] value, int status) {
+        ProcessLane processLane = getLane(bluetoothGatt, false);
+        if (processLane == null) {
+            return;
+        }
+        ReadWriteCharacteristic readWriteCharacteristic = processLane.complete(object);
+        if (readWriteCharacteristic == null) {
+            return;
+        }
+        finishProcess(processLane, readWriteCharacteristic, value, status);
+        // In MODE_FIXED_DELAY the next request waits for the next tick.
+        if (EXECUTE_MODE == MODE_COMPLETION) {
+            executeNextProcess(processLane);
+        }
+    }
+
+    /**
+     * Completes an answered request. A failure is retried if it is transient, every other one
+     * fails the request for good, so it reaches the ProcessFailureListener.
+     */
+    static void finishProcess(ProcessLane processLane, ReadWriteCharacteristic readWriteCharacteristic, byte[] value, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            readWriteCharacteristic.complete(value, status);
+        } else {
+            retryProcess(processLane, readWriteCharacteristic, status);
+        }
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == GattFuture.STATUS_TIMEOUT || status == GattFuture.STATUS_NOT_SENT
+                || status == GATT_ERROR || status == BluetoothGatt.GATT_FAILURE;
+    }
+
+    /**
+     * Sends the request again after a jittered, exponentially growing delay, or fails it for
+     * good once its retries are used up.
+     */
+    private static void retryProcess(final ProcessLane processLane, final ReadWriteCharacteristic readWriteCharacteristic, int status) {
+        int maxRetries = readWriteCharacteristic.getMaxRetries() < 0 ? MAX_RETRIES : readWriteCharacteristic.getMaxRetries();
+        int attempt = readWriteCharacteristic.getAttempt() + 1;
+        if (!isRetryable(status) || attempt > maxRetries) {
+            readWriteCharacteristic.fail(status);
+            return;
+        }
+        readWriteCharacteristic.setAttempt(attempt);
+        long backoff = Math.min(RETRY_BACKOFF_MAX, RETRY_BACKOFF << Math.min(attempt - 1, 16));
+        long delay = backoff / 2 + (long) (retryJitter.nextDouble() * (backoff / 2));
+        ScheduledTask retry = new ScheduledTask() {
+            @Override
+            public void run() {
+                if (processLanes.get(processLane.getDeviceAddress()) != processLane) {
+                    // The device was disconnected in the meantime.
+                    readWriteCharacteristic.fail(GattFuture.STATUS_CANCELLED);
+                } else if (!processLane.requeue(readWriteCharacteristic)) {
+                    readWriteCharacteristic.fail(GattFuture.STATUS_REJECTED);
+                } else if (EXECUTE_MODE == MODE_COMPLETION) {
+                    executeNextProcess(processLane);
+                } else {
+                    scheduleTick();
                 }
-            } else if (type == REQUEST_TYPE_READ_DESCRIPTOR) {
-                BluetoothGattDescriptor clientConfig = (BluetoothGattDescriptor) parseObject;
-                try {
-                    bluetoothGatt.readDescriptor(clientConfig);
-                } catch (Exception e) {
+            }
+        };
+        if (!SharedScheduler.schedule(retry, delay)) {
+            // The scheduler was stopped.
+            readWriteCharacteristic.fail(GattFuture.STATUS_CANCELLED);
+        }
+    }
+
+    private static ProcessLane getLane(BluetoothGatt bluetoothGatt, boolean create) {
+        return getLane(getAddress(bluetoothGatt), create);
+    }
+
+    private static ProcessLane getLane(String address, boolean create) {
+        ProcessLane processLane = processLanes.get(address);
+        if (processLane == null && create) {
+            ProcessLane newLane = new ProcessLane(address, Math.max(1, QUEUE_CAPACITY));
+            processLane = processLanes.putIfAbsent(address, newLane);
+            if (processLane == null) {
+                processLane = newLane;
+            }
+        }
+        return processLane;
+    }
+
+    private static String getAddress(BluetoothGatt bluetoothGatt) {
+        return bluetoothGatt.getDevice().getAddress();
+    }
+
+    /**
+     * Sends the first queued request of the lane if no other request of the same device
+     * is waiting for its callback.
+     */
+    private static void executeNextProcess(final ProcessLane processLane) {
+        // Checked first, so a busy or empty lane does not allocate a timeout.
+        while (processLane.canStartNext()) {
+            ScheduledTask timeout = new ScheduledTask() {
+                @Override
+                public void run() {
+                    ReadWriteCharacteristic timedOut = processLane.timeout(this);
+                    if (timedOut != null) {
+                        retryProcess(processLane, timedOut, GattFuture.STATUS_TIMEOUT);
+                        executeNextProcess(processLane);
+                    }
                 }
-            } else if (type == REQUEST_TYPE_WRITE_DESCRIPTOR) {
-                BluetoothGattDescriptor clientConfig = (BluetoothGattDescriptor) parseObject;
-                try {
-                    bluetoothGatt.writeDescriptor(clientConfig);
-                } catch (Exception e) {
+            };
+            ReadWriteCharacteristic readWriteCharacteristic = processLane.startNext(timeout);
+            if (readWriteCharacteristic == null) {
+                return;
+            }
+            long operationTimeout = readWriteCharacteristic.getOperationTimeout();
+            if (!SharedScheduler.schedule(timeout, operationTimeout > 0 ? operationTimeout : OPERATION_TIMEOUT)) {
+                // The scheduler was stopped by the last SharedScheduler.release() while the lane
+                // was still open. Without a timeout the request could hold the lane forever, so
+                // it is not sent.
+                if (processLane.release(readWriteCharacteristic)) {
+                    readWriteCharacteristic.fail(GattFuture.STATUS_CANCELLED);
                 }
+                continue;
             }
-
-            removeProcess(readWriteCharacteristic);
+            if (!execute(processLane, readWriteCharacteristic) && processLane.release(readWriteCharacteristic)) {
+                // The request never reached the stack, so no callback will follow.
+                retryProcess(processLane, readWriteCharacteristic, GattFuture.STATUS_NOT_SENT);
+                continue;
+            }
+            return;
         }
     }
 
     /**
-     * Returns the number of elements in ProcessQueueExecutor
+     * Hands the request over to the current BluetoothGatt of its device.
      *
-     * @return the number of elements in ProcessQueueExecutor
+     * @return true if the request was accepted by the stack.
      */
-    public int getSize() {
-        if (processList != null) {
-            return processList.size();
+    private static boolean execute(ProcessLane processLane, ReadWriteCharacteristic readWriteCharacteristic) {
+        BluetoothGatt currentGatt = processLane.getBluetoothGatt();
+        if (currentGatt != null && currentGatt != readWriteCharacteristic.getBluetoothGatt()
+                && !resolve(readWriteCharacteristic, currentGatt)) {
+            return false;
+        }
+        try {
+            return readWriteCharacteristic.send();
+        } catch (Exception e) {
         }
-        return 0;
+        return false;
     }
 
-    @Override
-    public void interrupt() {
-        super.interrupt();
-        if (processQueueTimer != null) {
-            processQueueTimer.cancel();
+    /**
+     * Moves a request queued before a reconnect over to the attribute with the same UUIDs
+     * in the new BluetoothGatt.
+     *
+     * @return false if the new BluetoothGatt does not have the attribute.
+     */
+    private static boolean resolve(ReadWriteCharacteristic readWriteCharacteristic, BluetoothGatt bluetoothGatt) {
+        BluetoothGattCharacteristic characteristic = readWriteCharacteristic.getCharacteristic();
+        BluetoothGattDescriptor descriptor = readWriteCharacteristic.getDescriptor();
+        BluetoothGattService service = bluetoothGatt.getService(characteristic.getService().getUuid());
+        BluetoothGattCharacteristic resolved = service == null ? null : service.getCharacteristic(characteristic.getUuid());
+        if (resolved == null) {
+            return false;
+        }
+        BluetoothGattDescriptor resolvedDescriptor = null;
+        if (descriptor != null) {
+            resolvedDescriptor = resolved.getDescriptor(descriptor.getUuid());
+            if (resolvedDescriptor == null) {
+                return false;
+            }
         }
+        readWriteCharacteristic.setAttribute(resolved, resolvedDescriptor);
+        readWriteCharacteristic.setBluetoothGatt(bluetoothGatt);
+        return true;
     }
 
-    @Override
-    public void run() {
-        super.run();
-        processQueueTimer.scheduleAtFixedRate(new TimerTask() {
+    /**
+     * Schedules the next tick of {@link #MODE_FIXED_DELAY}, EXECUTE_DELAY after the last one.
+     */
+    private static void scheduleTick() {
+        if (EXECUTE_MODE != MODE_FIXED_DELAY || !tickScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = Math.max(0, lastTick + EXECUTE_DELAY - SystemClock.elapsedRealtime());
+        ScheduledTask tick = new ScheduledTask() {
             @Override
             public void run() {
-                executeProcess();
+                lastTick = SystemClock.elapsedRealtime();
+                // Cleared first, so a request added during this tick schedules the next one.
+                tickScheduled.set(false);
+                if (executeProcess()) {
+                    scheduleTick();
+                }
+            }
+        };
+        if (!SharedScheduler.schedule(tick, delay)) {
+            // The scheduler was stopped.
+            tickScheduled.set(false);
+        }
+    }
+
+    /**
+     * Sends the first queued request of every device. Used by {@link #MODE_FIXED_DELAY}.
+     *
+     * @return true if requests are left in a lane that is not paused.
+     */
+    public static boolean executeProcess() {
+        boolean pending = false;
+        for (ProcessLane processLane : processLanes.values()) {
+            if (processLane.isPaused()) {
+                continue;
+            }
+            ReadWriteCharacteristic readWriteCharacteristic = processLane.poll();
+            if (readWriteCharacteristic == null) {
+                continue;
+            }
+            if (execute(processLane, readWriteCharacteristic)) {
+                processLane.setSent(readWriteCharacteristic);
+            } else {
+                retryProcess(processLane, readWriteCharacteristic, GattFuture.STATUS_NOT_SENT);
             }
-        }, 0, EXECUTE_DELAY);
+            pending |= processLane.size() > 0;
+        }
+        return pending;
+    }
+
+    /**
+     * Returns the number of elements in ProcessQueueExecutor
+     *
+     * @return the number of elements in ProcessQueueExecutor
+     */
+    public static int getSize() {
+        int size = 0;
+        for (ProcessLane processLane : processLanes.values()) {
+            size += processLane.size();
+        }
+        return size;
+    }
+
+    public interface QueueDepthListener {
+        /**
+         * Called when the queue of a device reaches three quarters of its capacity
+         * (congested) and again when it drains below one quarter.
+         */
+        void onQueueDepthChanged(String deviceAddress, int depth, int capacity, boolean congested);
+    }
+
+    public interface ProcessFailureListener {
+        /**
+         * Called when a request failed for good, right away for a status that is not retried,
+         * e.g. insufficient authentication, otherwise after its retries were used up. A pooled
+         * request is recycled once the call returns, so do not keep it.
+         *
+         * @param status GATT status of the last attempt or a GattFuture.STATUS_* constant.
+         */
+        void onProcessFailed(ReadWriteCharacteristic readWriteCharacteristic, int status);
     }
 }
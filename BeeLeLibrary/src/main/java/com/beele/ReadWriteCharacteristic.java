@@ -1,51 +1,450 @@
 package com.beele;
 
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
 
 
 /**
  * ReadWriteCharacteristic.java
  * Model class that provides details about RequestType, BluetoothGatt object and
- * Object
+ * the characteristic or descriptor the request is for.
+ * <p/>
+ * Requests made by the library come from a pool with {@link #obtain} and go back to it once
+ * they are finished, so a steady stream of reads and writes does not allocate. A request that
+ * was handed to the ProcessQueueExecutor must not be used after its future completed or its
+ * ProcessFailureListener returned. Requests created with a constructor are never pooled.
  */
 
 public class ReadWriteCharacteristic {
 
+    // Free requests kept for reuse.
+    public static int POOL_SIZE = 64;
+    private static final ReadWriteCharacteristic[] pool = new ReadWriteCharacteristic[256];
+    private static int poolCount;
+
+    // Sends the request, indexed by request type so the executor neither branches nor casts.
+    private static final Operation[] OPERATIONS = new Operation[ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR + 1];
+
+    static {
+        OPERATIONS[ProcessQueueExecutor.REQUEST_TYPE_READ_CHAR] = new Operation() {
+            @Override
+            boolean send(BluetoothGatt bluetoothGatt, ReadWriteCharacteristic request) {
+                return bluetoothGatt.readCharacteristic(request.characteristic);
+            }
+        };
+        OPERATIONS[ProcessQueueExecutor.REQUEST_TYPE_WRITE_CHAR] = new Operation() {
+            @Override
+            boolean send(BluetoothGatt bluetoothGatt, ReadWriteCharacteristic request) {
+                byte[] value = request.getValueToSend();
+                if (value != null) {
+                    request.characteristic.setValue(value);
+                }
+                return bluetoothGatt.writeCharacteristic(request.characteristic);
+            }
+        };
+        OPERATIONS[ProcessQueueExecutor.REQUEST_TYPE_READ_DESCRIPTOR] = new Operation() {
+            @Override
+            boolean send(BluetoothGatt bluetoothGatt, ReadWriteCharacteristic request) {
+                return bluetoothGatt.readDescriptor(request.descriptor);
+            }
+        };
+        OPERATIONS[ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR] = new Operation() {
+            @Override
+            boolean send(BluetoothGatt bluetoothGatt, ReadWriteCharacteristic request) {
+                byte[] value = request.getValueToSend();
+                if (value != null) {
+                    request.descriptor.setValue(value);
+                }
+                return bluetoothGatt.writeDescriptor(request.descriptor);
+            }
+        };
+    }
+
     private int requestType;
+    private Operation operation;
     private BluetoothGatt bluetoothGatt;
-    private Object object;
+    // Always set, for a descriptor request it is the characteristic of the descriptor.
+    private BluetoothGattCharacteristic characteristic;
+    // Only set for descriptor requests.
+    private BluetoothGattDescriptor descriptor;
+    private byte[] value;
+    // Set if value is the array of a PooledValue, released once the request is finished.
+    private PooledValue pooledValue;
+    private boolean coalescable = true;
+    private int priority = ProcessQueueExecutor.PRIORITY_NORMAL;
+    private GattFuture future;
+    private ProcessQueueExecutor.ProcessFailureListener failureListener;
+    private long operationTimeout;
+    private int maxRetries = -1;
+    private int attempt;
+    // Set once the request left the queue, after that it no longer accepts merges.
+    private boolean dispatched;
+    // True for requests from obtain() until they are recycled.
+    private boolean pooled;
+    // Fallback that releases the request while it is in flight, owned by ProcessLane.
+    ScheduledTask timeoutTask;
 
     public ReadWriteCharacteristic() {
     }
 
-    public ReadWriteCharacteristic(int requestType, BluetoothGatt bluetoothGatt, Object object) {
+    /**
+     * @param requestType REQUEST_TYPE_READ_CHAR or REQUEST_TYPE_WRITE_CHAR.
+     */
+    public ReadWriteCharacteristic(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic) {
+        init(requestType, bluetoothGatt, characteristic, null);
+    }
+
+    /**
+     * @param requestType REQUEST_TYPE_READ_DESCRIPTOR or REQUEST_TYPE_WRITE_DESCRIPTOR.
+     */
+    public ReadWriteCharacteristic(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattDescriptor descriptor) {
+        init(requestType, bluetoothGatt, descriptor.getCharacteristic(), descriptor);
+    }
+
+    public ReadWriteCharacteristic(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        this(requestType, bluetoothGatt, characteristic);
+        this.value = value;
+    }
+
+    public ReadWriteCharacteristic(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattDescriptor descriptor, byte[] value) {
+        this(requestType, bluetoothGatt, descriptor);
+        this.value = value;
+    }
+
+    /**
+     * Takes a characteristic request from the pool.
+     *
+     * @param requestType REQUEST_TYPE_READ_CHAR or REQUEST_TYPE_WRITE_CHAR.
+     */
+    public static ReadWriteCharacteristic obtain(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic) {
+        ReadWriteCharacteristic readWriteCharacteristic = obtain();
+        readWriteCharacteristic.init(requestType, bluetoothGatt, characteristic, null);
+        return readWriteCharacteristic;
+    }
+
+    /**
+     * Takes a descriptor request from the pool.
+     *
+     * @param requestType REQUEST_TYPE_READ_DESCRIPTOR or REQUEST_TYPE_WRITE_DESCRIPTOR.
+     */
+    public static ReadWriteCharacteristic obtain(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattDescriptor descriptor) {
+        ReadWriteCharacteristic readWriteCharacteristic = obtain();
+        readWriteCharacteristic.init(requestType, bluetoothGatt, descriptor.getCharacteristic(), descriptor);
+        return readWriteCharacteristic;
+    }
+
+    private static ReadWriteCharacteristic obtain() {
+        ReadWriteCharacteristic readWriteCharacteristic = null;
+        synchronized (pool) {
+            if (poolCount > 0) {
+                readWriteCharacteristic = pool[--poolCount];
+                pool[poolCount] = null;
+            }
+        }
+        if (readWriteCharacteristic == null) {
+            readWriteCharacteristic = new ReadWriteCharacteristic();
+        }
+        readWriteCharacteristic.pooled = true;
+        return readWriteCharacteristic;
+    }
+
+    private void init(int requestType, BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic,
+                      BluetoothGattDescriptor descriptor) {
+        boolean descriptorType = requestType == ProcessQueueExecutor.REQUEST_TYPE_READ_DESCRIPTOR
+                || requestType == ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR;
+        if (requestType < 1 || requestType >= OPERATIONS.length || descriptorType != (descriptor != null)) {
+            throw new IllegalArgumentException("Request type " + requestType + " does not match the attribute");
+        }
         this.requestType = requestType;
+        this.operation = OPERATIONS[requestType];
         this.bluetoothGatt = bluetoothGatt;
-        this.object = object;
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
     }
 
-    public int getRequestType() {
-        return requestType;
+    /**
+     * Puts a request from {@link #obtain} back into the pool, called by the library once the
+     * request is finished. Does nothing for requests created with a constructor.
+     */
+    void recycle() {
+        synchronized (this) {
+            if (!pooled) {
+                return;
+            }
+            pooled = false;
+            releaseValue();
+            value = null;
+            future = null;
+            dispatched = false;
+        }
+        requestType = 0;
+        operation = null;
+        bluetoothGatt = null;
+        characteristic = null;
+        descriptor = null;
+        coalescable = true;
+        priority = ProcessQueueExecutor.PRIORITY_NORMAL;
+        failureListener = null;
+        operationTimeout = 0;
+        maxRetries = -1;
+        attempt = 0;
+        timeoutTask = null;
+        synchronized (pool) {
+            if (poolCount < Math.min(POOL_SIZE, pool.length)) {
+                pool[poolCount++] = this;
+            }
+        }
     }
 
-    public void setRequestType(int requestType) {
-        this.requestType = requestType;
+    public int getRequestType() {
+        return requestType;
     }
 
     public BluetoothGatt getBluetoothGatt() {
         return bluetoothGatt;
     }
 
-    public void setBluetoothGatt(BluetoothGatt bluetoothGatt) {
+    void setBluetoothGatt(BluetoothGatt bluetoothGatt) {
         this.bluetoothGatt = bluetoothGatt;
     }
 
-    public Object getObject() {
-        return object;
+    /**
+     * @return the characteristic of the request, or of its descriptor.
+     */
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * @return the descriptor of a descriptor request, null otherwise.
+     */
+    public BluetoothGattDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Points the request at the same attribute of a new BluetoothGatt.
+     */
+    void setAttribute(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor) {
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @return the descriptor or characteristic the request is for, matched by identity against
+     * the attribute of a GATT callback.
+     */
+    Object getAttribute() {
+        return descriptor != null ? descriptor : characteristic;
+    }
+
+    /**
+     * Hands the request over to the BluetoothGatt.
+     *
+     * @return true if the request was accepted by the stack.
+     */
+    boolean send() {
+        return operation.send(bluetoothGatt, this);
+    }
+
+    /**
+     * @return the value to write, set on the attribute only right before the request is sent.
+     */
+    public synchronized byte[] getValue() {
+        return value;
+    }
+
+    public synchronized void setValue(byte[] value) {
+        releaseValue();
+        this.value = value;
+    }
+
+    /**
+     * Writes the value of the PooledValue. The request takes over the reference of the caller
+     * and releases it once it is finished.
+     */
+    public synchronized void setValue(PooledValue pooledValue) {
+        releaseValue();
+        this.pooledValue = pooledValue;
+        this.value = pooledValue.array();
+    }
+
+    // The characteristic or descriptor keeps the array it was given after the request finished,
+    // so it gets a copy of a pooled array, which is reused for the next value of its length.
+    private synchronized byte[] getValueToSend() {
+        return pooledValue != null ? value.clone() : value;
+    }
+
+    private synchronized void releaseValue() {
+        if (pooledValue != null) {
+            pooledValue.release();
+            pooledValue = null;
+            value = null;
+        }
+    }
+
+    /**
+     * @return one of the ProcessQueueExecutor.PRIORITY_* constants.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = Math.max(ProcessQueueExecutor.PRIORITY_HIGH, Math.min(ProcessQueueExecutor.PRIORITY_LOW, priority));
+    }
+
+    /**
+     * @return the future completed with the result of this request, null if nobody asked for it.
+     */
+    public synchronized GattFuture getFuture() {
+        return future;
+    }
+
+    public synchronized void setFuture(GattFuture future) {
+        this.future = future;
+    }
+
+    /**
+     * Completes the future of this request, if any, and recycles the request. A write of a
+     * PooledValue completes the future without value, since the array goes back to the pool.
+     */
+    void complete(byte[] value, int status) {
+        completeFuture(value, status);
+        recycle();
+    }
+
+    private void completeFuture(byte[] value, int status) {
+        GattFuture gattFuture;
+        synchronized (this) {
+            if (pooledValue != null && value == pooledValue.array()) {
+                value = null;
+            }
+            releaseValue();
+            gattFuture = future;
+        }
+        if (gattFuture != null) {
+            gattFuture.complete(value, status);
+        }
+    }
+
+    /**
+     * Completes the future of this request with a failure and tells the failure listener.
+     */
+    void fail(int status) {
+        completeFuture(null, status);
+        try {
+            if (failureListener != null) {
+                failureListener.onProcessFailed(this, status);
+            }
+        } finally {
+            recycle();
+        }
+    }
+
+    public ProcessQueueExecutor.ProcessFailureListener getFailureListener() {
+        return failureListener;
+    }
+
+    /**
+     * @param failureListener told when the request finally failed, after all retries.
+     */
+    public void setFailureListener(ProcessQueueExecutor.ProcessFailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * @return how long to wait for the callback of one attempt, 0 for ProcessQueueExecutor.OPERATION_TIMEOUT.
+     */
+    public long getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    public void setOperationTimeout(long operationTimeout) {
+        this.operationTimeout = operationTimeout;
+    }
+
+    /**
+     * @return how often the request is retried, -1 for ProcessQueueExecutor.MAX_RETRIES.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the number of retries already made.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    void setAttempt(int attempt) {
+        this.attempt = attempt;
+    }
+
+    /**
+     * @return true if a later request for the same attribute may be merged into this one.
+     */
+    public boolean isCoalescable() {
+        return coalescable;
+    }
+
+    public void setCoalescable(boolean coalescable) {
+        this.coalescable = coalescable;
+    }
+
+    /**
+     * Merges a later request for the same attribute into this queued one. A read answers
+     * both callers, a write takes over the newer value. The caller recycles the later request.
+     *
+     * @return false if this request was already sent, is less urgent than the new one or
+     * either request opted out.
+     */
+    synchronized boolean merge(ReadWriteCharacteristic readWriteCharacteristic) {
+        if (dispatched || !coalescable || !readWriteCharacteristic.isCoalescable()
+                || priority > readWriteCharacteristic.getPriority()
+                || requestType != readWriteCharacteristic.getRequestType()
+                || getAttribute() != readWriteCharacteristic.getAttribute()) {
+            return false;
+        }
+        if (isWrite()) {
+            // The queued request takes over the newer value and its PooledValue, if any.
+            releaseValue();
+            synchronized (readWriteCharacteristic) {
+                value = readWriteCharacteristic.value;
+                pooledValue = readWriteCharacteristic.pooledValue;
+                readWriteCharacteristic.pooledValue = null;
+            }
+        }
+        // Both callers are answered by this request.
+        GattFuture gattFuture = readWriteCharacteristic.getFuture();
+        if (gattFuture != null) {
+            if (future == null) {
+                future = gattFuture;
+            } else {
+                future.forwardTo(gattFuture);
+            }
+        }
+        return true;
+    }
+
+    synchronized void markDispatched() {
+        dispatched = true;
+    }
+
+    boolean isWrite() {
+        return requestType == ProcessQueueExecutor.REQUEST_TYPE_WRITE_CHAR
+                || requestType == ProcessQueueExecutor.REQUEST_TYPE_WRITE_DESCRIPTOR;
     }
 
-    public void setObject(Object object) {
-        this.object = object;
+    private static abstract class Operation {
+        abstract boolean send(BluetoothGatt bluetoothGatt, ReadWriteCharacteristic request);
     }
 
 }
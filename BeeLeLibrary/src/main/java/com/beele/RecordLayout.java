@@ -0,0 +1,274 @@
+package com.beele;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * RecordLayout.java
+ * <p/>
+ * Declares the fields of a composite characteristic value, such as the Heart Rate Measurement
+ * or the Temperature Measurement, once, so each notification is decoded into a reusable
+ * {@link Record} without allocating:
+ * <pre>
+ * RecordLayout layout = new RecordLayout()
+ *         .add(GattCodec.FORMAT_UINT8, "flags")
+ *         .add(GattCodec.FORMAT_FLOAT, "temperature")
+ *         .add(GattCodec.FORMAT_UINT8, "type", 0, 0x04);
+ * RecordLayout.Record record = layout.newRecord();
+ * layout.decode(value.buffer(), 0, value.length(), record);
+ * </pre>
+ * A field may depend on a flag: it is only in the value if the earlier integer field it names
+ * has one of the bits of its mask set.
+ */
+public final class RecordLayout {
+
+    private final static int NO_FLAG = -1;
+
+    private int[] formats = new int[4];
+    private String[] names = new String[4];
+    private int[] flagFields = new int[4];
+    private int[] flagMasks = new int[4];
+    private int fieldCount;
+
+    /**
+     * Adds a field that is always present.
+     *
+     * @param format one of the GattCodec.FORMAT_* constants.
+     * @return this layout.
+     */
+    public RecordLayout add(int format, String name) {
+        return add(format, name, NO_FLAG, 0);
+    }
+
+    /**
+     * Adds a field that is present only if {@code (flags & flagMask) != 0}, where flags is the
+     * value of the field at index flagField.
+     *
+     * @param format    one of the GattCodec.FORMAT_* constants.
+     * @param flagField index of an earlier integer field.
+     * @return this layout.
+     */
+    public RecordLayout add(int format, String name, int flagField, int flagMask) {
+        if (GattCodec.getSize(format) == 0 || !isInteger(format) && !isFloat(format)) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        if (flagField != NO_FLAG && (flagField < 0 || flagField >= fieldCount || !isInteger(formats[flagField]))) {
+            throw new IllegalArgumentException("Flag field must be an earlier integer field: " + flagField);
+        }
+        if (fieldCount == formats.length) {
+            int capacity = fieldCount * 2;
+            formats = Arrays.copyOf(formats, capacity);
+            names = Arrays.copyOf(names, capacity);
+            flagFields = Arrays.copyOf(flagFields, capacity);
+            flagMasks = Arrays.copyOf(flagMasks, capacity);
+        }
+        formats[fieldCount] = format;
+        names[fieldCount] = name;
+        flagFields[fieldCount] = flagField;
+        flagMasks[fieldCount] = flagMask;
+        fieldCount++;
+        return this;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return the index of the field, -1 if the layout has no field of that name. Look the
+     * indexes up once, not for every value.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getName(int field) {
+        checkField(field);
+        return names[field];
+    }
+
+    public int getFormat(int field) {
+        checkField(field);
+        return formats[field];
+    }
+
+    /**
+     * @return a record to decode into, reuse it for every value of this layout.
+     */
+    public Record newRecord() {
+        return new Record(this, fieldCount);
+    }
+
+    /**
+     * Decodes the value into the record. Fields whose flag is not set, and fields the value is
+     * too short for, are marked as not present and read as 0, so nothing is left over from the
+     * previous value and a missing flags field announces no optional fields.
+     *
+     * @return false if the value was too short for the fields its flags announce.
+     */
+    public boolean decode(ByteBuffer buffer, int offset, int length, Record record) {
+        checkRecord(record);
+        int end = offset + length;
+        boolean complete = true;
+        for (int i = 0; i < fieldCount; i++) {
+            int format = formats[i];
+            int size = GattCodec.getSize(format);
+            if (!isFlagSet(record, i)) {
+                record.clear(i);
+            } else if (offset + size > end) {
+                record.clear(i);
+                complete = false;
+            } else {
+                if (isInteger(format)) {
+                    record.integers[i] = GattCodec.getInteger(buffer, offset, format);
+                } else if (format == GattCodec.FORMAT_SFLOAT) {
+                    record.floats[i] = GattCodec.getSfloat(buffer, offset);
+                } else {
+                    record.floats[i] = GattCodec.getFloat(buffer, offset);
+                }
+                record.present[i] = true;
+                offset += size;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(ByteBuffer, int, Record)} writes for the record.
+     */
+    public int getEncodedLength(Record record) {
+        checkRecord(record);
+        int length = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            if (isFlagSet(record, i)) {
+                length += GattCodec.getSize(formats[i]);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the record, writing the fields whose flag is set in the record.
+     *
+     * @return the number of bytes written.
+     */
+    public int encode(ByteBuffer buffer, int offset, Record record) {
+        checkRecord(record);
+        int start = offset;
+        for (int i = 0; i < fieldCount; i++) {
+            if (!isFlagSet(record, i)) {
+                continue;
+            }
+            int format = formats[i];
+            if (isInteger(format)) {
+                GattCodec.putInteger(buffer, offset, format, record.integers[i]);
+            } else if (format == GattCodec.FORMAT_SFLOAT) {
+                GattCodec.putSfloat(buffer, offset, (float) record.floats[i]);
+            } else {
+                GattCodec.putFloat(buffer, offset, record.floats[i]);
+            }
+            offset += GattCodec.getSize(format);
+        }
+        return offset - start;
+    }
+
+    private boolean isFlagSet(Record record, int field) {
+        int flagField = flagFields[field];
+        return flagField == NO_FLAG || (record.integers[flagField] & flagMasks[field]) != 0;
+    }
+
+    private void checkRecord(Record record) {
+        if (record.layout != this || record.present.length != fieldCount) {
+            throw new IllegalArgumentException("Record was not created by this layout or the layout changed since");
+        }
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + field + ", field count " + fieldCount);
+        }
+    }
+
+    private static boolean isInteger(int format) {
+        return (format & 0xF0) == 0x10 || (format & 0xF0) == 0x20;
+    }
+
+    private static boolean isFloat(int format) {
+        return format == GattCodec.FORMAT_SFLOAT || format == GattCodec.FORMAT_FLOAT;
+    }
+
+    /**
+     * Field values of one decoded value, indexed like the fields of the layout. Integer fields
+     * are read with getLong / getInt, SFLOAT and FLOAT fields with getDouble / getFloat.
+     */
+    public static final class Record {
+
+        private final RecordLayout layout;
+        private final long[] integers;
+        private final double[] floats;
+        private final boolean[] present;
+
+        private Record(RecordLayout layout, int fieldCount) {
+            this.layout = layout;
+            this.integers = new long[fieldCount];
+            this.floats = new double[fieldCount];
+            this.present = new boolean[fieldCount];
+        }
+
+        public RecordLayout getLayout() {
+            return layout;
+        }
+
+        private void clear(int field) {
+            integers[field] = 0;
+            floats[field] = 0;
+            present[field] = false;
+        }
+
+        /**
+         * @return false if the last decoded value did not contain the field.
+         */
+        public boolean isPresent(int field) {
+            return present[field];
+        }
+
+        public long getLong(int field) {
+            return integers[field];
+        }
+
+        public int getInt(int field) {
+            return (int) integers[field];
+        }
+
+        public double getDouble(int field) {
+            return floats[field];
+        }
+
+        public float getFloat(int field) {
+            return (float) floats[field];
+        }
+
+        /**
+         * Sets an integer field for {@link RecordLayout#encode(ByteBuffer, int, Record)}.
+         */
+        public Record setLong(int field, long value) {
+            integers[field] = value;
+            present[field] = true;
+            return this;
+        }
+
+        /**
+         * Sets an SFLOAT or FLOAT field for {@link RecordLayout#encode(ByteBuffer, int, Record)}.
+         */
+        public Record setDouble(int field, double value) {
+            floats[field] = value;
+            present[field] = true;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.beele;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ScanAggregator.java
+ * <p/>
+ * Merges scan results into one entry per device and publishes them as a snapshot at most once
+ * per frame interval. An advertisement only updates the entry of its device, found with a
+ * single hash lookup of its address, on the thread that reported it. The list of entries is
+ * built once per frame and only if something changed, so the UI redraws at the frame rate
+ * however many devices advertise.
+ * <p/>
+ * The RSSI of each device is smoothed, by default with a one dimensional Kalman filter, since
+ * single readings scatter by several dBm. With a time to live, devices that were not heard
+ * from for that long are dropped. Their deadlines are kept in a hashed {@link TimingWheel}, so
+ * an advertisement only moves the deadline and a tick only looks at the devices due in it.
+ * <p/>
+ * It is a LeScanCallback, pass it to BluetoothAdapter.startLeScan directly. Call
+ * {@link #close()} when it is no longer needed.
+ */
+public class ScanAggregator implements BluetoothAdapter.LeScanCallback {
+
+    // Default time between two snapshots, about 10 frames per second.
+    public static long FRAME_INTERVAL = 100;
+    // Use the latest RSSI as it is.
+    public final static int RSSI_FILTER_NONE = 0;
+    // Exponential moving average, weighing the latest RSSI with RSSI_SMOOTHING.
+    public final static int RSSI_FILTER_EMA = 1;
+    // Kalman filter for a stationary device with KALMAN_PROCESS_NOISE and KALMAN_MEASUREMENT_NOISE.
+    public final static int RSSI_FILTER_KALMAN = 2;
+    public static double RSSI_SMOOTHING = 0.25;
+    // Variance in dBm^2 the true RSSI drifts by per advertisement, and of a single reading.
+    public static double KALMAN_PROCESS_NOISE = 0.125;
+    public static double KALMAN_MEASUREMENT_NOISE = 4;
+    // Granularity and size of the expiry wheel, a device expires up to one tick after its time to live.
+    public static long EXPIRY_TICK = 250;
+    public static int EXPIRY_WHEEL_SIZE = 64;
+
+    private final Map<String, Device> devicesByAddress = new HashMap<String, Device>();
+    // The devices in the order they were first seen, which is the order of the snapshots.
+    private final List<Device> devices = new ArrayList<Device>();
+    private final SnapshotListener snapshotListener;
+    private volatile Executor executor;
+    private volatile long frameInterval;
+    private List<ScanEntry> snapshot = Collections.emptyList();
+    // Something changed since the last snapshot.
+    private boolean changed;
+    private boolean frameScheduled;
+    private long lastPublished;
+    private boolean closed;
+    private volatile int rssiFilter = RSSI_FILTER_KALMAN;
+    // Milliseconds a device is kept after its latest advertisement, 0 to keep it until clear().
+    private long timeToLive;
+    private final TimingWheel expiryWheel;
+    private boolean expiryScheduled;
+    private final TimingWheel.ExpiryHandler expiryHandler = new TimingWheel.ExpiryHandler() {
+        @Override
+        public void onExpired(TimingWheel.Node node) {
+            Device device = (Device) node;
+            devicesByAddress.remove(device.device.getAddress());
+            // Taken out of the list with the next snapshot.
+            device.expired = true;
+            changed = true;
+        }
+    };
+
+    public ScanAggregator(SnapshotListener snapshotListener) {
+        this(snapshotListener, FRAME_INTERVAL);
+    }
+
+    /**
+     * @param frameInterval minimum milliseconds between two snapshots.
+     */
+    public ScanAggregator(SnapshotListener snapshotListener, long frameInterval) {
+        this.snapshotListener = snapshotListener;
+        this.frameInterval = frameInterval;
+        this.expiryWheel = new TimingWheel(EXPIRY_WHEEL_SIZE, EXPIRY_TICK, SystemClock.elapsedRealtime());
+        // Frames are timed by the shared timer, close() gives it back.
+        SharedScheduler.acquire();
+    }
+
+    /**
+     * Sets the executor the SnapshotListener is called on, e.g. one that posts to the main
+     * thread. By default it is called on the timer thread of the SharedScheduler and must
+     * return quickly.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public long getFrameInterval() {
+        return frameInterval;
+    }
+
+    /**
+     * @param frameInterval minimum milliseconds between two snapshots, applies from the next one.
+     */
+    public void setFrameInterval(long frameInterval) {
+        this.frameInterval = frameInterval;
+    }
+
+    /**
+     * @param rssiFilter one of the RSSI_FILTER_* constants, applies to devices seen afterwards.
+     */
+    public void setRssiFilter(int rssiFilter) {
+        this.rssiFilter = rssiFilter;
+    }
+
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @param timeToLive milliseconds a device is kept after its latest advertisement, 0 to keep
+     *                   devices until clear(). Applies from the next advertisement of each device.
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(0, timeToLive);
+        if (this.timeToLive == 0) {
+            expiryWheel.clear();
+        }
+    }
+
+    @Override
+    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (device == null || device.getAddress() == null) {
+            return;
+        }
+        String address = device.getAddress();
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Device aggregated = devicesByAddress.get(address);
+            if (aggregated == null) {
+                aggregated = new Device(device, now, rssiFilter);
+                devicesByAddress.put(address, aggregated);
+                devices.add(aggregated);
+            }
+            aggregated.rssi = rssi;
+            aggregated.filterRssi(rssi);
+            aggregated.scanRecord = scanRecord;
+            aggregated.lastSeen = now;
+            aggregated.advertisementCount++;
+            aggregated.entry = null;
+            if (timeToLive > 0) {
+                // Only the deadline moves, the wheel finds out when it reaches the old one.
+                aggregated.deadline = now + timeToLive;
+                expiryWheel.add(aggregated);
+                scheduleExpiry();
+            }
+            changed = true;
+            scheduleFrame(now);
+        }
+    }
+
+    /**
+     * @return the latest published snapshot, unmodifiable.
+     */
+    public synchronized List<ScanEntry> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the number of devices seen, including those not published yet.
+     */
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /**
+     * Forgets every device, the next snapshot is empty.
+     */
+    public synchronized void clear() {
+        devicesByAddress.clear();
+        devices.clear();
+        expiryWheel.clear();
+        changed = true;
+        scheduleFrame(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Forgets every device and stops publishing snapshots.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            devicesByAddress.clear();
+            devices.clear();
+            expiryWheel.clear();
+            snapshot = Collections.emptyList();
+        }
+        SharedScheduler.release();
+    }
+
+    // Called with the lock held.
+    private void scheduleFrame(long now) {
+        if (frameScheduled || closed) {
+            return;
+        }
+        frameScheduled = true;
+        long delay = Math.max(0, lastPublished + frameInterval - now);
+        ScheduledTask frame = new ScheduledTask() {
+            @Override
+            public void run() {
+                publish();
+            }
+        };
+        if (!SharedScheduler.schedule(frame, delay)) {
+            // The scheduler was stopped.
+            frameScheduled = false;
+        }
+    }
+
+    // Called with the lock held, ticks only while devices can expire.
+    private void scheduleExpiry() {
+        if (expiryScheduled || closed || expiryWheel.isEmpty()) {
+            return;
+        }
+        expiryScheduled = true;
+        ScheduledTask tick = new ScheduledTask() {
+            @Override
+            public void run() {
+                expire();
+            }
+        };
+        if (!SharedScheduler.schedule(tick, expiryWheel.getTickDuration())) {
+            // The scheduler was stopped.
+            expiryScheduled = false;
+        }
+    }
+
+    private synchronized void expire() {
+        expiryScheduled = false;
+        if (closed) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        expiryWheel.advance(now, expiryHandler);
+        if (changed) {
+            scheduleFrame(now);
+        }
+        scheduleExpiry();
+    }
+
+    private void publish() {
+        final List<ScanEntry> published;
+        synchronized (this) {
+            frameScheduled = false;
+            if (!changed || closed) {
+                return;
+            }
+            changed = false;
+            lastPublished = SystemClock.elapsedRealtime();
+            List<ScanEntry> entries = new ArrayList<ScanEntry>(devices.size());
+            int kept = 0;
+            for (int i = 0; i < devices.size(); i++) {
+                Device device = devices.get(i);
+                if (device.expired) {
+                    continue;
+                }
+                // Expired devices are compacted out of the list in the same pass.
+                devices.set(kept++, device);
+                // Only devices that advertised since the last snapshot get a new entry.
+                if (device.entry == null) {
+                    device.entry = new ScanEntry(device.device, device.rssi, device.filteredRssi, device.scanRecord,
+                            device.firstSeen, device.lastSeen, device.advertisementCount);
+                }
+                entries.add(device.entry);
+            }
+            devices.subList(kept, devices.size()).clear();
+            published = Collections.unmodifiableList(entries);
+            snapshot = published;
+        }
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                snapshotListener.onSnapshot(published);
+            }
+        };
+        Executor current = executor;
+        if (current == null) {
+            delivery.run();
+            return;
+        }
+        try {
+            current.execute(delivery);
+        } catch (RejectedExecutionException e) {
+        }
+    }
+
+    private static class Device extends TimingWheel.Node {
+        final BluetoothDevice device;
+        final long firstSeen;
+        final int rssiFilter;
+        int rssi;
+        double filteredRssi;
+        // Estimate variance of the Kalman filter.
+        double rssiVariance;
+        byte[] scanRecord;
+        long lastSeen;
+        int advertisementCount;
+        // Entry of the last snapshot, null once the device advertised again.
+        ScanEntry entry;
+        boolean expired;
+
+        Device(BluetoothDevice device, long firstSeen, int rssiFilter) {
+            this.device = device;
+            this.firstSeen = firstSeen;
+            this.rssiFilter = rssiFilter;
+        }
+
+        void filterRssi(int rssi) {
+            if (advertisementCount == 0 || rssiFilter == RSSI_FILTER_NONE) {
+                filteredRssi = rssi;
+                rssiVariance = KALMAN_MEASUREMENT_NOISE;
+            } else if (rssiFilter == RSSI_FILTER_EMA) {
+                filteredRssi += RSSI_SMOOTHING * (rssi - filteredRssi);
+            } else {
+                rssiVariance += KALMAN_PROCESS_NOISE;
+                double gain = rssiVariance / (rssiVariance + KALMAN_MEASUREMENT_NOISE);
+                filteredRssi += gain * (rssi - filteredRssi);
+                rssiVariance *= 1 - gain;
+            }
+        }
+    }
+
+    public interface SnapshotListener {
+        /**
+         * @param entries every device seen, in the order they were first seen, unmodifiable.
+         */
+        void onSnapshot(List<ScanEntry> entries);
+    }
+}
@@ -0,0 +1,81 @@
+package com.beele;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * ScanEntry.java
+ * <p/>
+ * What a {@link ScanAggregator} knows about one advertising device at the time of a snapshot.
+ * Entries are immutable, a device that advertised again gets a new entry in the next
+ * snapshot, an unchanged one keeps its entry, so comparing by identity tells what changed.
+ */
+public final class ScanEntry {
+
+    private final BluetoothDevice device;
+    private final int rssi;
+    private final double filteredRssi;
+    private final byte[] scanRecord;
+    private final long firstSeen;
+    private final long lastSeen;
+    private final int advertisementCount;
+
+    ScanEntry(BluetoothDevice device, int rssi, double filteredRssi, byte[] scanRecord, long firstSeen, long lastSeen, int advertisementCount) {
+        this.device = device;
+        this.rssi = rssi;
+        this.filteredRssi = filteredRssi;
+        this.scanRecord = scanRecord;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.advertisementCount = advertisementCount;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    /**
+     * @return the RSSI of the latest advertisement.
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return the RSSI smoothed over the advertisements so far, see ScanAggregator.setRssiFilter.
+     */
+    public double getFilteredRssi() {
+        return filteredRssi;
+    }
+
+    /**
+     * @return the raw advertising data of the latest advertisement, shared, do not modify it.
+     */
+    public byte[] getScanRecord() {
+        return scanRecord;
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtime() of the first advertisement.
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtime() of the latest advertisement.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the number of advertisements received from the device.
+     */
+    public int getAdvertisementCount() {
+        return advertisementCount;
+    }
+}
@@ -0,0 +1,289 @@
+package com.beele;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ScanScheduler.java
+ * <p/>
+ * Scans continuously for hours by duty cycling a {@link LeScanner}: it scans for a scan window
+ * at the start of every scan interval and pauses for the rest. The interval adapts to what is
+ * found. A window that discovered new devices halves it, down to the minimum interval, a quiet
+ * window grows it by half, up to the maximum. Busy surroundings are therefore scanned closely
+ * and quiet ones cost little battery.
+ * <p/>
+ * Android refuses to start more than a few scans in a short period, from Android 7 on 5 per
+ * 30 seconds, and then silently reports nothing. Scan starts are rate limited to
+ * MAX_SCAN_STARTS per SCAN_START_PERIOD, a start that would exceed it is put off. A pause
+ * shorter than MIN_SCAN_PAUSE is not worth a stop and start, the scan then simply goes on.
+ * <p/>
+ * The phases are timed by the timer of the {@link SharedScheduler}, call {@link #close()} when
+ * the scheduler is no longer needed.
+ */
+public class ScanScheduler {
+
+    // Default milliseconds scanned at the start of every interval.
+    public static long SCAN_WINDOW = 4000;
+    // Default bounds of the adaptive scan interval.
+    public static long MIN_SCAN_INTERVAL = 8000;
+    public static long MAX_SCAN_INTERVAL = 60000;
+    // Android 7 allows 5 scan starts per 30 seconds per app.
+    public static int MAX_SCAN_STARTS = 5;
+    public static long SCAN_START_PERIOD = 30000;
+    // Pauses shorter than this keep scanning instead.
+    public static long MIN_SCAN_PAUSE = 1000;
+    // Addresses remembered to tell new devices from known ones.
+    public static int MAX_KNOWN_DEVICES = 1024;
+
+    private final LeScanner leScanner;
+    private long scanWindow = SCAN_WINDOW;
+    private long minScanInterval = MIN_SCAN_INTERVAL;
+    private long maxScanInterval = MAX_SCAN_INTERVAL;
+    private long scanInterval;
+    // Start times of the latest scans, oldest at scanStartIndex once the array is full.
+    private final long[] scanStarts = new long[Math.max(1, MAX_SCAN_STARTS)];
+    private int scanStartIndex;
+    private int scanStartCount;
+    // Compiled once in start(), every window scans with it.
+    private LeScanFilter.Matcher matcher;
+    private volatile BluetoothAdapter.LeScanCallback callback;
+    private boolean running;
+    private boolean closed;
+    private ScheduledTask pending;
+    private final Map<String, Boolean> knownDevices = new KnownDevices();
+    // Guarded by knownDevices, scan results do not wait for the scheduler.
+    private int newDevices;
+    private final BluetoothAdapter.LeScanCallback countingCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (device != null && device.getAddress() != null) {
+                synchronized (knownDevices) {
+                    if (knownDevices.put(device.getAddress(), Boolean.TRUE) == null) {
+                        newDevices++;
+                    }
+                }
+            }
+            BluetoothAdapter.LeScanCallback currentCallback = callback;
+            if (currentCallback != null) {
+                currentCallback.onLeScan(device, rssi, scanRecord);
+            }
+        }
+    };
+
+    public ScanScheduler(BluetoothAdapter bluetoothAdapter) {
+        this(new LeScanner(bluetoothAdapter));
+    }
+
+    public ScanScheduler(LeScanner leScanner) {
+        this.leScanner = leScanner;
+        // Phases are timed by the shared timer, close() gives it back.
+        SharedScheduler.acquire();
+    }
+
+    /**
+     * @param scanWindow milliseconds scanned at the start of every interval, applies from the next window.
+     */
+    public synchronized void setScanWindow(long scanWindow) {
+        this.scanWindow = Math.max(1, scanWindow);
+    }
+
+    public synchronized long getScanWindow() {
+        return scanWindow;
+    }
+
+    /**
+     * Sets the bounds of the adaptive scan interval, the same value for both fixes it.
+     * An interval no longer than the scan window scans without pause.
+     */
+    public synchronized void setScanInterval(long minScanInterval, long maxScanInterval) {
+        this.minScanInterval = Math.max(1, minScanInterval);
+        this.maxScanInterval = Math.max(this.minScanInterval, maxScanInterval);
+        scanInterval = Math.min(Math.max(scanInterval, this.minScanInterval), this.maxScanInterval);
+    }
+
+    /**
+     * @return the current scan interval in milliseconds.
+     */
+    public synchronized long getScanInterval() {
+        return scanInterval;
+    }
+
+    /**
+     * Starts the duty cycle with a scan window, or replaces the filter and callback of the
+     * running one. The interval starts at its minimum.
+     *
+     * @param filter   the advertisements to pass on, null for all.
+     * @param callback told every advertisement that passes the filter, on the scan callback thread.
+     */
+    public synchronized void start(LeScanFilter filter, BluetoothAdapter.LeScanCallback callback) {
+        if (closed) {
+            return;
+        }
+        this.matcher = filter == null ? null : filter.compile();
+        this.callback = callback;
+        if (running) {
+            if (leScanner.isScanning()) {
+                leScanner.start(matcher, countingCallback);
+            }
+            return;
+        }
+        running = true;
+        scanInterval = minScanInterval;
+        beginWindow();
+    }
+
+    /**
+     * Stops scanning and the duty cycle.
+     */
+    public synchronized void stop() {
+        running = false;
+        callback = null;
+        cancelPending();
+        leScanner.stop();
+    }
+
+    /**
+     * @return true between start() and stop(), also while pausing.
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true while in a scan window.
+     */
+    public boolean isScanning() {
+        return leScanner.isScanning();
+    }
+
+    /**
+     * Stops scanning and gives the shared timer back.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            stop();
+            closed = true;
+        }
+        SharedScheduler.release();
+    }
+
+    // Called with the lock held.
+    private void beginWindow() {
+        if (!leScanner.isScanning()) {
+            long now = SystemClock.elapsedRealtime();
+            long allowed = getNextScanStart();
+            if (allowed > now) {
+                // Starting now would be throttled, and the scan would report nothing.
+                schedule(new ScheduledTask() {
+                    @Override
+                    public void run() {
+                        onTimer(this, true);
+                    }
+                }, allowed - now);
+                return;
+            }
+            // Counted even if it fails, the system may have counted it too.
+            recordScanStart(now);
+            leScanner.start(matcher, countingCallback);
+        }
+        synchronized (knownDevices) {
+            newDevices = 0;
+        }
+        schedule(new ScheduledTask() {
+            @Override
+            public void run() {
+                onTimer(this, false);
+            }
+        }, scanWindow);
+    }
+
+    // Called with the lock held.
+    private void endWindow() {
+        int discovered;
+        synchronized (knownDevices) {
+            discovered = newDevices;
+        }
+        if (discovered > 0) {
+            scanInterval = Math.max(minScanInterval, scanInterval / 2);
+        } else {
+            scanInterval = Math.min(maxScanInterval, scanInterval + scanInterval / 2);
+        }
+        long pause = scanInterval - scanWindow;
+        if (pause < MIN_SCAN_PAUSE) {
+            // Keeps scanning, the next window begins right away without a new start.
+            beginWindow();
+            return;
+        }
+        leScanner.stop();
+        schedule(new ScheduledTask() {
+            @Override
+            public void run() {
+                onTimer(this, true);
+            }
+        }, pause);
+    }
+
+    private synchronized void onTimer(ScheduledTask task, boolean begin) {
+        // A task that was replaced or cancelled while waiting for the lock does nothing.
+        if (task != pending || !running) {
+            return;
+        }
+        pending = null;
+        if (begin) {
+            beginWindow();
+        } else {
+            endWindow();
+        }
+    }
+
+    private void schedule(ScheduledTask task, long delay) {
+        cancelPending();
+        pending = task;
+        if (!SharedScheduler.schedule(task, delay)) {
+            // The scheduler was stopped.
+            pending = null;
+        }
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+    }
+
+    // The earliest time a scan can start without exceeding MAX_SCAN_STARTS per SCAN_START_PERIOD.
+    private long getNextScanStart() {
+        if (scanStartCount < scanStarts.length) {
+            return 0;
+        }
+        return scanStarts[scanStartIndex] + SCAN_START_PERIOD;
+    }
+
+    private void recordScanStart(long now) {
+        scanStarts[scanStartIndex] = now;
+        scanStartIndex = (scanStartIndex + 1) % scanStarts.length;
+        scanStartCount = Math.min(scanStartCount + 1, scanStarts.length);
+    }
+
+    // Least recently seen addresses are forgotten beyond MAX_KNOWN_DEVICES.
+    private static class KnownDevices extends LinkedHashMap<String, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        KnownDevices() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KNOWN_DEVICES;
+        }
+    }
+}
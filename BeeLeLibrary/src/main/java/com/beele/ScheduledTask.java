@@ -0,0 +1,39 @@
+package com.beele;
+
+import java.util.concurrent.Future;
+
+/**
+ * ScheduledTask.java
+ * <p/>
+ * Task run once by {@link SharedScheduler#schedule(ScheduledTask, long)}. Like a TimerTask it
+ * can be cancelled at any time, also before it was scheduled, and is then not run. Unlike with
+ * a Timer, a task that throws does not stop the tasks scheduled after it.
+ */
+abstract class ScheduledTask implements Runnable {
+
+    private volatile boolean cancelled;
+    private volatile Future<?> future;
+
+    /**
+     * Keeps the task from running if it has not started yet.
+     */
+    public void cancel() {
+        cancelled = true;
+        Future<?> current = future;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+        // Cancelled while it was being scheduled.
+        if (cancelled) {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServiceLayoutCache.java
+ * <p/>
+ * Keeps the discovered service / characteristic / descriptor layout of each device in a small
+ * binary file, so the layout and its hash survive reconnects and restarts.
+ * <p/>
+ * Android only hands out usable BluetoothGattCharacteristic objects after discoverServices(),
+ * which is answered from the stack's own attribute cache for known devices. This class decides
+ * when that cache can no longer be trusted: after a Service Changed indication, or when a
+ * discovery answered from it does not match the stored layout, the device is marked stale and
+ * its stack cache is refreshed before the next discovery. A device seen for the first time, or
+ * whose file was lost or damaged, is simply discovered, the stack has nothing to refresh.
+ * <p/>
+ * The layouts are kept in memory, the files are only read and written on a background thread
+ * so the GATT callback thread never waits for storage. All files are loaded once when the
+ * cache is created, use {@link #load(String, Runnable)} before relying on isStale() early on.
+ */
+public class ServiceLayoutCache {
+
+    private final static int FILE_VERSION = 2;
+    private final static String DIRECTORY = "beele_layouts";
+    // Stands for a device that is known to have no trusted layout.
+    private final static byte[] NO_LAYOUT = new byte[0];
+    // How long the file thread waits for more work before it ends.
+    public static long FILE_THREAD_KEEP_ALIVE = 10000;
+
+    private final File directory;
+    // Layout of every device that was loaded or discovered, NO_LAYOUT if it has none.
+    private final ConcurrentMap<String, byte[]> layouts = new ConcurrentHashMap<String, byte[]>();
+    // Devices whose stack cache must be refreshed before their next discovery.
+    private final Set<String> refreshRequired = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Single thread that reads and writes the files in the order they were requested.
+    private final ThreadPoolExecutor fileExecutor;
+
+    public ServiceLayoutCache(Context context) {
+        directory = new File(context.getFilesDir(), DIRECTORY);
+        fileExecutor = new ThreadPoolExecutor(0, 1, Math.max(1, FILE_THREAD_KEEP_ALIVE),
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ServiceLayoutCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadAll();
+            }
+        });
+    }
+
+    /**
+     * @return true once the stored layout of the device, if any, is in memory.
+     */
+    public boolean isLoaded(String deviceAddress) {
+        return layouts.containsKey(deviceAddress);
+    }
+
+    /**
+     * Runs the task once the stored layout of the device is in memory: right away if it
+     * already is, otherwise on the file thread after reading it.
+     */
+    public void load(final String deviceAddress, final Runnable task) {
+        if (isLoaded(deviceAddress)) {
+            task.run();
+            return;
+        }
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadLayout(deviceAddress);
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * @return true if the device has no trusted layout. A layout that was not loaded yet
+     * counts as stale.
+     */
+    public boolean isStale(String deviceAddress) {
+        return getLayout(deviceAddress) == null;
+    }
+
+    /**
+     * @return true if the device was marked stale since its last discovery, so the attribute
+     * cache of the stack must be refreshed before discovering it again.
+     */
+    public boolean isRefreshRequired(String deviceAddress) {
+        return refreshRequired.contains(deviceAddress);
+    }
+
+    /**
+     * Forgets the layout of the device and asks for a refresh of the stack cache, e.g. after a
+     * Service Changed indication.
+     */
+    public void markStale(final String deviceAddress) {
+        layouts.put(deviceAddress, NO_LAYOUT);
+        refreshRequired.add(deviceAddress);
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getFile(deviceAddress).delete();
+            }
+        });
+    }
+
+    /**
+     * @return hash of the stored layout, 0 if there is none.
+     */
+    public long getLayoutHash(String deviceAddress) {
+        byte[] layout = getLayout(deviceAddress);
+        return layout == null ? 0 : hash(layout);
+    }
+
+    /**
+     * Stores the layout that was just discovered, the file is written in the background. The
+     * discovery refreshed the stack cache if that was required.
+     *
+     * @return true if its hash differs from the one of the stored layout.
+     */
+    public boolean update(final String deviceAddress, List<BluetoothGattService> services) {
+        refreshRequired.remove(deviceAddress);
+        final byte[] layout;
+        try {
+            layout = encode(services);
+        } catch (IOException e) {
+            return true;
+        }
+        final long layoutHash = hash(layout);
+        if (layoutHash == getLayoutHash(deviceAddress)) {
+            return false;
+        }
+        layouts.put(deviceAddress, layout);
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(deviceAddress, layout, layoutHash);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Builds the stored layout as detached BluetoothGattService objects. They describe which
+     * services and characteristics the device has before discovery finishes, but can not be
+     * read or written: use the ones of BluetoothGatt.getServices() for that.
+     *
+     * @return the services, or null if no layout is stored or it was not loaded yet.
+     */
+    public List<BluetoothGattService> getServices(String deviceAddress) {
+        byte[] layout = getLayout(deviceAddress);
+        if (layout == null) {
+            return null;
+        }
+        try {
+            return decode(layout);
+        } catch (IOException e) {
+            markStale(deviceAddress);
+            return null;
+        }
+    }
+
+    // Memory only, null if there is no trusted layout or it was not loaded yet.
+    private byte[] getLayout(String deviceAddress) {
+        byte[] layout = layouts.get(deviceAddress);
+        return layout == null || layout == NO_LAYOUT ? null : layout;
+    }
+
+    private File getFile(String deviceAddress) {
+        return new File(directory, deviceAddress.replace(":", "") + ".bin");
+    }
+
+    // File thread only.
+    private void loadAll() {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (!name.endsWith(".bin") || name.length() != 16) {
+                continue;
+            }
+            StringBuilder address = new StringBuilder(17);
+            for (int i = 0; i < 12; i += 2) {
+                if (i > 0) {
+                    address.append(':');
+                }
+                address.append(name, i, i + 2);
+            }
+            loadLayout(address.toString());
+        }
+    }
+
+    // File thread only, a layout that was discovered or marked stale meanwhile is kept.
+    private void loadLayout(String deviceAddress) {
+        if (isLoaded(deviceAddress)) {
+            return;
+        }
+        byte[] layout = read(deviceAddress);
+        layouts.putIfAbsent(deviceAddress, layout == null ? NO_LAYOUT : layout);
+    }
+
+    // Null if there is no file or it does not match the hash stored with it, e.g. after a
+    // write that was cut short.
+    private byte[] read(String deviceAddress) {
+        File file = getFile(deviceAddress);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            long layoutHash = in.readLong();
+            byte[] layout = new byte[in.readInt()];
+            in.readFully(layout);
+            return hash(layout) == layoutHash ? layout : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private void write(String deviceAddress, byte[] layout, long layoutHash) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File file = getFile(deviceAddress);
+        File temp = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(layoutHash);
+            out.writeInt(layout.length);
+            out.write(layout);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            temp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Layout: service count, then per service its UUID, type and characteristics, per
+    // characteristic its UUID, properties, permissions and descriptor UUIDs.
+    private static byte[] encode(List<BluetoothGattService> services) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(services.size());
+        for (BluetoothGattService service : services) {
+            writeUuid(out, service.getUuid());
+            out.writeByte(service.getType());
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            out.writeShort(characteristics.size());
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                writeUuid(out, characteristic.getUuid());
+                out.writeByte(characteristic.getProperties());
+                out.writeShort(characteristic.getPermissions());
+                List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+                out.writeByte(descriptors.size());
+                for (BluetoothGattDescriptor descriptor : descriptors) {
+                    writeUuid(out, descriptor.getUuid());
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<BluetoothGattService> decode(byte[] layout) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(layout));
+        int serviceCount = in.readUnsignedShort();
+        List<BluetoothGattService> services = new ArrayList<BluetoothGattService>(serviceCount);
+        for (int i = 0; i < serviceCount; i++) {
+            BluetoothGattService service = new BluetoothGattService(readUuid(in), in.readUnsignedByte());
+            int characteristicCount = in.readUnsignedShort();
+            for (int j = 0; j < characteristicCount; j++) {
+                BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(readUuid(in),
+                        in.readUnsignedByte(), in.readUnsignedShort());
+                int descriptorCount = in.readUnsignedByte();
+                for (int k = 0; k < descriptorCount; k++) {
+                    characteristic.addDescriptor(new BluetoothGattDescriptor(readUuid(in), 0));
+                }
+                service.addCharacteristic(characteristic);
+            }
+            services.add(service);
+        }
+        return services;
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    // 64 bit FNV-1a.
+    private static long hash(byte[] layout) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : layout) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
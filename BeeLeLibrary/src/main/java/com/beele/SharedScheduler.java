@@ -0,0 +1,99 @@
+package com.beele;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SharedScheduler.java
+ * <p/>
+ * Threads shared by every BluetoothLe of the process: one timer thread for timeouts, retries,
+ * reconnects and the fixed delay mode, and one thread that calls the notification consumers.
+ * The timer thread is a ScheduledThreadPoolExecutor rather than a java.util.Timer, whose
+ * thread dies for good when a task throws, which would silently stop every later timeout.
+ * Nothing is scheduled while there is no work, so an idle process is not woken up, and the
+ * notification thread ends after NOTIFICATION_THREAD_KEEP_ALIVE without notifications.
+ * <p/>
+ * Every BluetoothLe holds a reference from its constructor until {@link BluetoothLe#close()}.
+ * When the last one is closed both threads are stopped, the next BluetoothLe starts new ones.
+ */
+public final class SharedScheduler {
+
+    // How long the notification thread waits for more notifications before it ends.
+    public static long NOTIFICATION_THREAD_KEEP_ALIVE = 30000;
+
+    private static ScheduledThreadPoolExecutor timer;
+    private static ThreadPoolExecutor notificationExecutor;
+    private static int references;
+
+    private SharedScheduler() {
+    }
+
+    static synchronized void acquire() {
+        references++;
+    }
+
+    /**
+     * Drops a reference, the last one stops the threads and cancels whatever is still scheduled.
+     */
+    static synchronized void release() {
+        if (references == 0 || --references > 0) {
+            return;
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (notificationExecutor != null) {
+            notificationExecutor.shutdown();
+            notificationExecutor = null;
+        }
+    }
+
+    /**
+     * Runs the task once after the delay on the timer thread, which waits without waking up
+     * while no task is scheduled.
+     *
+     * @param delay milliseconds.
+     * @return false if the scheduler was stopped, because no BluetoothLe or scanner holds it.
+     */
+    static synchronized boolean schedule(ScheduledTask task, long delay) {
+        if (references == 0) {
+            return false;
+        }
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BeeLeScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        task.setFuture(timer.schedule(task, Math.max(0, delay), TimeUnit.MILLISECONDS));
+        return true;
+    }
+
+    /**
+     * @return the executor the notifications are delivered on by default, a single thread
+     * that is only running while there are notifications.
+     */
+    static synchronized Executor getNotificationExecutor() {
+        if (notificationExecutor == null) {
+            notificationExecutor = new ThreadPoolExecutor(0, 1, Math.max(1, NOTIFICATION_THREAD_KEEP_ALIVE),
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "NotificationDispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return notificationExecutor;
+    }
+}
@@ -0,0 +1,244 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SubscriptionRegistry.java
+ * <p/>
+ * Notification handlers of each (device, characteristic), so a notification reaches its
+ * handlers with a single hash lookup instead of every consumer filtering by UUID.
+ * <p/>
+ * Handlers of the same characteristic share one subscription: the Client Characteristic
+ * Configuration descriptor is written when the first handler is added and again when the
+ * last one is removed, the ones in between only change the reference count. Enabling the
+ * notification for the BluetoothLeListener counts as one more reference.
+ */
+public class SubscriptionRegistry {
+
+    private final ConcurrentMap<SubscriptionKey, List<Subscriber>> subscriptions = new ConcurrentHashMap<SubscriptionKey, List<Subscriber>>();
+    // Characteristics whose notifications were enabled for the BluetoothLeListener.
+    private final Set<SubscriptionKey> listenerSubscriptions = Collections.newSetFromMap(new ConcurrentHashMap<SubscriptionKey, Boolean>());
+
+    /**
+     * Adds a handler, the same handler may be added more than once and is then called once
+     * for every time it was added.
+     *
+     * @param handler a NotificationHandler or a PooledValue.ValueHandler.
+     * @return true if it is the first handler, so the notification must be enabled.
+     */
+    synchronized boolean add(String deviceAddress, UUID characteristicUuid, Object handler) {
+        SubscriptionKey key = new SubscriptionKey(deviceAddress, characteristicUuid);
+        List<Subscriber> handlers = subscriptions.get(key);
+        if (handlers == null) {
+            handlers = new CopyOnWriteArrayList<Subscriber>();
+            handlers.add(toSubscriber(handler));
+            subscriptions.put(key, handlers);
+            return !listenerSubscriptions.contains(key);
+        }
+        handlers.add(toSubscriber(handler));
+        return false;
+    }
+
+    /**
+     * Removes one reference of the handler.
+     *
+     * @return true if it was the last handler, so the notification must be disabled.
+     */
+    synchronized boolean remove(String deviceAddress, UUID characteristicUuid, Object handler) {
+        SubscriptionKey key = new SubscriptionKey(deviceAddress, characteristicUuid);
+        List<Subscriber> handlers = subscriptions.get(key);
+        if (handlers == null || !handlers.remove(toSubscriber(handler)) || !handlers.isEmpty()) {
+            return false;
+        }
+        subscriptions.remove(key);
+        return !listenerSubscriptions.contains(key);
+    }
+
+    /**
+     * Enables or disables the notification for the BluetoothLeListener, which holds at most
+     * one reference however often it is enabled.
+     *
+     * @return true if the notification must be enabled or disabled on the device, false if
+     * nothing changed or handlers still hold the subscription.
+     */
+    synchronized boolean setListenerSubscribed(String deviceAddress, UUID characteristicUuid, boolean subscribed) {
+        SubscriptionKey key = new SubscriptionKey(deviceAddress, characteristicUuid);
+        boolean changed = subscribed ? listenerSubscriptions.add(key) : listenerSubscriptions.remove(key);
+        return changed && !subscriptions.containsKey(key);
+    }
+
+    /**
+     * @return true if the notification was enabled for the BluetoothLeListener, whether or not
+     * handlers are subscribed too.
+     */
+    public boolean isListenerSubscribed(String deviceAddress, UUID characteristicUuid) {
+        return listenerSubscriptions.contains(new SubscriptionKey(deviceAddress, characteristicUuid));
+    }
+
+    /**
+     * @return the number of handlers of the characteristic.
+     */
+    public int getReferenceCount(String deviceAddress, UUID characteristicUuid) {
+        List<Subscriber> handlers = subscriptions.get(new SubscriptionKey(deviceAddress, characteristicUuid));
+        return handlers == null ? 0 : handlers.size();
+    }
+
+    /**
+     * @return the characteristics of the device that have handlers or were enabled for the listener.
+     */
+    public synchronized List<UUID> getSubscribedCharacteristics(String deviceAddress) {
+        List<UUID> characteristicUuids = new ArrayList<UUID>();
+        for (SubscriptionKey key : subscriptions.keySet()) {
+            if (key.deviceAddress.equals(deviceAddress)) {
+                characteristicUuids.add(key.characteristicUuid);
+            }
+        }
+        for (SubscriptionKey key : listenerSubscriptions) {
+            if (key.deviceAddress.equals(deviceAddress) && !subscriptions.containsKey(key)) {
+                characteristicUuids.add(key.characteristicUuid);
+            }
+        }
+        return characteristicUuids;
+    }
+
+    /**
+     * Calls the handlers of the characteristic.
+     *
+     * @param value     the value, released by the caller afterwards.
+     * @param timestamp SystemClock.elapsedRealtimeNanos() when the notification arrived.
+     * @return false if it has none.
+     */
+    boolean dispatch(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp) {
+        List<Subscriber> handlers = subscriptions.get(
+                new SubscriptionKey(bluetoothGatt.getDevice().getAddress(), characteristic.getUuid()));
+        if (handlers == null) {
+            return false;
+        }
+        for (Subscriber handler : handlers) {
+            handler.onNotification(bluetoothGatt, characteristic, value, timestamp);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets every subscription of the device, e.g. after it was disconnected.
+     */
+    synchronized void clear(String deviceAddress) {
+        for (SubscriptionKey key : subscriptions.keySet()) {
+            if (key.deviceAddress.equals(deviceAddress)) {
+                subscriptions.remove(key);
+            }
+        }
+        for (SubscriptionKey key : listenerSubscriptions) {
+            if (key.deviceAddress.equals(deviceAddress)) {
+                listenerSubscriptions.remove(key);
+            }
+        }
+    }
+
+    private static Subscriber toSubscriber(Object handler) {
+        if (handler instanceof Subscriber) {
+            return (Subscriber) handler;
+        }
+        if (handler instanceof PooledValue.ValueHandler) {
+            return new ValueSubscriber((PooledValue.ValueHandler) handler);
+        }
+        return new ArraySubscriber((NotificationHandler) handler);
+    }
+
+    /**
+     * Receives notifications as PooledValues together with their arrival time.
+     */
+    interface Subscriber {
+        void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp);
+    }
+
+    // Adapters are equal if they wrap the same handler, so a handler can be removed again.
+    private static final class ValueSubscriber implements Subscriber {
+        final PooledValue.ValueHandler handler;
+
+        ValueSubscriber(PooledValue.ValueHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp) {
+            handler.onValue(gatt, characteristic, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ValueSubscriber && ((ValueSubscriber) o).handler == handler;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(handler);
+        }
+    }
+
+    // Hands out a byte[] copy, for handlers written before PooledValue.
+    private static final class ArraySubscriber implements Subscriber {
+        final NotificationHandler handler;
+
+        ArraySubscriber(NotificationHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value, long timestamp) {
+            handler.onNotification(gatt, characteristic, value.array().clone());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ArraySubscriber && ((ArraySubscriber) o).handler == handler;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(handler);
+        }
+    }
+
+    private static final class SubscriptionKey {
+        final String deviceAddress;
+        final UUID characteristicUuid;
+        final int hash;
+
+        SubscriptionKey(String deviceAddress, UUID characteristicUuid) {
+            this.deviceAddress = deviceAddress;
+            this.characteristicUuid = characteristicUuid;
+            this.hash = 31 * deviceAddress.hashCode() + characteristicUuid.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SubscriptionKey)) {
+                return false;
+            }
+            SubscriptionKey other = (SubscriptionKey) o;
+            return hash == other.hash && characteristicUuid.equals(other.characteristicUuid)
+                    && deviceAddress.equals(other.deviceAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public interface NotificationHandler {
+        void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value);
+    }
+}
@@ -0,0 +1,145 @@
+package com.beele;
+
+/**
+ * TimingWheel.java
+ * <p/>
+ * Hashed timing wheel for many deadlines that are pushed back far more often than they
+ * expire, such as the time to live of scanned devices. A node sits in the slot of the tick its
+ * deadline falls in. Moving the deadline of a node only writes the field: the node is looked
+ * at again when the wheel reaches its old slot, and is then expired or moved to the slot of
+ * its current deadline. A tick therefore costs the nodes of one slot, not all of them.
+ * <p/>
+ * Not thread safe, the owner synchronizes.
+ */
+class TimingWheel {
+
+    private final Node[] slots;
+    private final int mask;
+    private final long tickDuration;
+    // The last tick that was processed.
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param slotCount    rounded up to a power of two.
+     * @param tickDuration milliseconds per slot.
+     * @param now          the current time in milliseconds.
+     */
+    TimingWheel(int slotCount, long tickDuration, long now) {
+        int size = Integer.highestOneBit(Math.max(2, slotCount) * 2 - 1);
+        slots = new Node[size];
+        mask = size - 1;
+        this.tickDuration = Math.max(1, tickDuration);
+        currentTick = now / this.tickDuration;
+    }
+
+    long getTickDuration() {
+        return tickDuration;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the node, which expires once the wheel passes node.deadline.
+     */
+    void add(Node node) {
+        if (node.slot >= 0) {
+            return;
+        }
+        link(node);
+        size++;
+    }
+
+    void remove(Node node) {
+        if (node.slot < 0) {
+            return;
+        }
+        unlink(node);
+        size--;
+    }
+
+    void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            Node node = slots[i];
+            while (node != null) {
+                Node next = node.next;
+                node.slot = -1;
+                node.previous = null;
+                node.next = null;
+                node = next;
+            }
+            slots[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Processes the slots of the ticks up to now, expired nodes are removed and handed over.
+     */
+    void advance(long now, ExpiryHandler expiryHandler) {
+        long targetTick = now / tickDuration;
+        // After a long pause every slot is visited once, that covers all nodes.
+        long ticks = Math.min(targetTick - currentTick, slots.length);
+        for (long i = 0; i < ticks; i++) {
+            currentTick++;
+            int slot = (int) currentTick & mask;
+            Node node = slots[slot];
+            slots[slot] = null;
+            while (node != null) {
+                Node next = node.next;
+                node.slot = -1;
+                node.previous = null;
+                node.next = null;
+                if (node.deadline <= now) {
+                    size--;
+                    expiryHandler.onExpired(node);
+                } else {
+                    link(node);
+                }
+                node = next;
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+    }
+
+    private void link(Node node) {
+        // A deadline that already passed is handled on the next tick.
+        long tick = Math.max(node.deadline / tickDuration, currentTick + 1);
+        int slot = (int) tick & mask;
+        node.slot = slot;
+        node.previous = null;
+        node.next = slots[slot];
+        if (node.next != null) {
+            node.next.previous = node;
+        }
+        slots[slot] = node;
+    }
+
+    private void unlink(Node node) {
+        if (node.previous != null) {
+            node.previous.next = node.next;
+        } else {
+            slots[node.slot] = node.next;
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+        }
+        node.slot = -1;
+        node.previous = null;
+        node.next = null;
+    }
+
+    static class Node {
+        // When the node expires, may be moved later at any time.
+        long deadline;
+        int slot = -1;
+        Node previous;
+        Node next;
+    }
+
+    interface ExpiryHandler {
+        void onExpired(Node node);
+    }
+}
@@ -0,0 +1,103 @@
+package com.beele;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisingDataTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+
+    private static byte[] bytes(int... values) {
+        byte[] array = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            array[i] = (byte) values[i];
+        }
+        return array;
+    }
+
+    @Test
+    public void parsesCommonStructures() {
+        AdvertisingData data = new AdvertisingData().wrap(bytes(
+                0x02, 0x01, 0x06,
+                0x03, 0x03, 0x0D, 0x18,
+                0x02, 0x0A, 0xF4,
+                0x05, 0x09, 'B', 'e', 'e', 'L',
+                // Padding up to the length of the scanRecord.
+                0x00, 0x00, 0x00));
+        assertFalse(data.isTruncated());
+        assertEquals(0x06, data.getFlags());
+        assertEquals(-12, data.getTxPowerLevel());
+        assertEquals(1, data.getServiceUuidCount());
+        assertTrue(data.hasServiceUuid(HEART_RATE));
+        assertEquals("BeeL", data.getLocalName());
+        assertTrue(data.isLocalNameComplete());
+    }
+
+    @Test
+    public void truncatedAndEmptyRecords() {
+        // Record, truncated, flags.
+        Object[][] cases = {
+                {bytes(), false, -1},
+                {null, false, -1},
+                {bytes(0x00, 0x02, 0x01, 0x06), false, -1},
+                {bytes(0x02, 0x01, 0x06, 0x05, 0xFF, 0x4C), true, 0x06},
+                {bytes(0x02, 0x01), true, -1},
+                {bytes(0x02, 0x01, 0x06, 0x01), true, 0x06},
+                // A structure of only a type has no value.
+                {bytes(0x01, 0x01, 0x02, 0x01, 0x05), false, 0x05},
+        };
+        for (int i = 0; i < cases.length; i++) {
+            AdvertisingData data = new AdvertisingData().wrap((byte[]) cases[i][0]);
+            assertEquals("case " + i, cases[i][1], data.isTruncated());
+            assertEquals("case " + i, (long) (Integer) cases[i][2], data.getFlags());
+        }
+    }
+
+    @Test
+    public void keepsEveryManufacturerBlock() {
+        AdvertisingData data = new AdvertisingData().wrap(bytes(
+                0x04, 0xFF, 0x4C, 0x00, 0x10,
+                0x05, 0xFF, 0x59, 0x00, 0x01, 0x02,
+                // Too short for a company identifier.
+                0x02, 0xFF, 0x06));
+        assertEquals(2, data.getManufacturerDataCount());
+        assertEquals(0x004C, data.getManufacturerId());
+        assertEquals(0x004C, data.getManufacturerId(0));
+        assertEquals(0x0059, data.getManufacturerId(1));
+        assertTrue(data.hasManufacturerId(0x0059));
+        assertFalse(data.hasManufacturerId(0x0006));
+        assertEquals(1, data.getManufacturerDataLength(0));
+        assertEquals(2, data.getManufacturerDataLength(1));
+        assertEquals(0x01, data.getData()[data.getManufacturerDataOffset(1)]);
+    }
+
+    @Test
+    public void manufacturerBlocksBeyondTheLimitAreIgnored() {
+        int blocks = AdvertisingData.MAX_MANUFACTURER_DATA + 1;
+        byte[] record = new byte[blocks * 4];
+        for (int i = 0; i < blocks; i++) {
+            record[i * 4] = 0x03;
+            record[i * 4 + 1] = (byte) 0xFF;
+            record[i * 4 + 2] = (byte) i;
+        }
+        AdvertisingData data = new AdvertisingData().wrap(record);
+        assertFalse(data.isTruncated());
+        assertEquals(AdvertisingData.MAX_MANUFACTURER_DATA, data.getManufacturerDataCount());
+        assertFalse(data.hasManufacturerId(AdvertisingData.MAX_MANUFACTURER_DATA));
+    }
+
+    @Test
+    public void wrapForgetsThePreviousRecord() {
+        AdvertisingData data = new AdvertisingData().wrap(bytes(0x04, 0xFF, 0x4C, 0x00, 0x10, 0x03, 0x09, 'A', 'B'));
+        data.wrap(bytes(0x02, 0x01, 0x06));
+        assertEquals(0, data.getManufacturerDataCount());
+        assertEquals(-1, data.getManufacturerId());
+        assertNull(data.getLocalName());
+    }
+}
@@ -0,0 +1,149 @@
+package com.beele;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class GattCodecTest {
+
+    private static ByteBuffer wrap(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(i, (byte) bytes[i]);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer uint16(int raw) {
+        return wrap(raw, raw >> 8);
+    }
+
+    private static ByteBuffer uint32(int raw) {
+        return wrap(raw, raw >> 8, raw >> 16, raw >> 24);
+    }
+
+    @Test
+    public void sfloatSpecialValues() {
+        // Raw value, expected value.
+        Object[][] cases = {
+                {0x07FF, Float.NaN},
+                {0x0800, Float.NaN},
+                {0x0801, Float.NaN},
+                {0x07FE, Float.POSITIVE_INFINITY},
+                {0x0802, Float.NEGATIVE_INFINITY},
+                // The special mantissas mean the same with any exponent.
+                {0xF7FE, Float.POSITIVE_INFINITY},
+        };
+        for (Object[] c : cases) {
+            int raw = (Integer) c[0];
+            assertEquals("raw " + Integer.toHexString(raw), (Float) c[1], GattCodec.getSfloat(uint16(raw), 0), 0f);
+        }
+    }
+
+    @Test
+    public void sfloatValues() {
+        Object[][] cases = {
+                {0x0000, 0f},
+                {0xF16D, 36.5f},
+                {0x0FFF, -1f},
+                {0xFFFF, -0.1f},
+                {0x1002, 20f},
+                {0x87FD, 2045e-8f},
+                {0x0803, -2045f},
+        };
+        for (Object[] c : cases) {
+            int raw = (Integer) c[0];
+            assertEquals("raw " + Integer.toHexString(raw), (Float) c[1], GattCodec.getSfloat(uint16(raw), 0), 0f);
+        }
+    }
+
+    @Test
+    public void floatSpecialValues() {
+        Object[][] cases = {
+                {0x007FFFFF, Double.NaN},
+                {0x00800000, Double.NaN},
+                {0x00800001, Double.NaN},
+                {0x007FFFFE, Double.POSITIVE_INFINITY},
+                {0x00800002, Double.NEGATIVE_INFINITY},
+        };
+        for (Object[] c : cases) {
+            int raw = (Integer) c[0];
+            assertEquals("raw " + Integer.toHexString(raw), (Double) c[1], GattCodec.getFloat(uint32(raw), 0), 0);
+        }
+    }
+
+    @Test
+    public void floatValues() {
+        Object[][] cases = {
+                {0x00000000, 0d},
+                {0xFF00016D, 36.5},
+                {0xFDFFFFFF, -0.001},
+                {0x02000003, 300d},
+                {0x00FFFFFF, -1d},
+        };
+        for (Object[] c : cases) {
+            int raw = (Integer) c[0];
+            assertEquals("raw " + Integer.toHexString(raw), (Double) c[1], GattCodec.getFloat(uint32(raw), 0), 1e-12);
+        }
+    }
+
+    @Test
+    public void floatsRoundTrip() {
+        float[] sfloats = {0f, 36.5f, -1f, -0.1f, 2045f, -2045f, 0.0012f, Float.NaN};
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        for (float value : sfloats) {
+            GattCodec.putSfloat(buffer, 0, value);
+            assertEquals("sfloat " + value, value, GattCodec.getSfloat(buffer, 0), Math.abs(value) * 1e-6f);
+        }
+        double[] floats = {0, 36.5, -0.001, 123456.7, -8388605, 1e-20, Double.NaN};
+        for (double value : floats) {
+            GattCodec.putFloat(buffer, 0, value);
+            assertEquals("float " + value, value, GattCodec.getFloat(buffer, 0), Math.abs(value) * 1e-9);
+        }
+    }
+
+    @Test
+    public void outOfRangeSfloatIsInfinite() {
+        ByteBuffer buffer = ByteBuffer.allocate(2);
+        GattCodec.putSfloat(buffer, 0, 1e12f);
+        assertEquals(Float.POSITIVE_INFINITY, GattCodec.getSfloat(buffer, 0), 0f);
+        GattCodec.putSfloat(buffer, 0, -1e12f);
+        assertEquals(Float.NEGATIVE_INFINITY, GattCodec.getSfloat(buffer, 0), 0f);
+    }
+
+    @Test
+    public void integersAreSignExtended() {
+        // Format, bytes, expected value.
+        Object[][] cases = {
+                {GattCodec.FORMAT_SINT8, wrap(0x7F), 127L},
+                {GattCodec.FORMAT_SINT8, wrap(0x80), -128L},
+                {GattCodec.FORMAT_SINT8, wrap(0xFF), -1L},
+                {GattCodec.FORMAT_UINT8, wrap(0xFF), 255L},
+                {GattCodec.FORMAT_SINT16, wrap(0xFF, 0x7F), 32767L},
+                {GattCodec.FORMAT_SINT16, wrap(0x00, 0x80), -32768L},
+                {GattCodec.FORMAT_SINT16, wrap(0xFE, 0xFF), -2L},
+                {GattCodec.FORMAT_UINT16, wrap(0x00, 0x80), 32768L},
+                {GattCodec.FORMAT_SINT32, wrap(0x00, 0x00, 0x00, 0x80), (long) Integer.MIN_VALUE},
+                {GattCodec.FORMAT_SINT32, wrap(0xFF, 0xFF, 0xFF, 0xFF), -1L},
+                {GattCodec.FORMAT_UINT32, wrap(0xFF, 0xFF, 0xFF, 0xFF), 0xFFFFFFFFL},
+        };
+        for (Object[] c : cases) {
+            int format = (Integer) c[0];
+            assertEquals("format " + Integer.toHexString(format), (long) (Long) c[2],
+                    GattCodec.getInteger((ByteBuffer) c[1], 0, format));
+        }
+    }
+
+    @Test
+    public void integersAreLittleEndianWhateverTheBufferOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        GattCodec.putInteger(buffer, 0, GattCodec.FORMAT_SINT16, -2);
+        assertEquals(0xFE, buffer.get(0) & 0xFF);
+        assertEquals(0xFF, buffer.get(1) & 0xFF);
+        assertEquals(-2, GattCodec.getSint16(buffer, 0));
+        assertEquals(0, buffer.position());
+    }
+}
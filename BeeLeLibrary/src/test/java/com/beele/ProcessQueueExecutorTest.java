@@ -0,0 +1,61 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ProcessQueueExecutorTest {
+
+    private static class RecordingListener implements ProcessQueueExecutor.ProcessFailureListener {
+        ReadWriteCharacteristic failed;
+        int status;
+
+        @Override
+        public void onProcessFailed(ReadWriteCharacteristic readWriteCharacteristic, int status) {
+            this.failed = readWriteCharacteristic;
+            this.status = status;
+        }
+    }
+
+    @Test
+    public void terminalFailureReachesFailureListener() {
+        int[] statuses = {
+                BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION,
+                BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION,
+                BluetoothGatt.GATT_READ_NOT_PERMITTED,
+                BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+                BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        };
+        for (int status : statuses) {
+            ReadWriteCharacteristic request = new ReadWriteCharacteristic();
+            RecordingListener listener = new RecordingListener();
+            request.setFailureListener(listener);
+            GattFuture future = new GattFuture();
+            request.setFuture(future);
+
+            ProcessQueueExecutor.finishProcess(null, request, null, status);
+
+            assertSame(request, listener.failed);
+            assertEquals(status, listener.status);
+            assertEquals(status, future.getStatus());
+        }
+    }
+
+    @Test
+    public void successDoesNotReachFailureListener() {
+        ReadWriteCharacteristic request = new ReadWriteCharacteristic();
+        RecordingListener listener = new RecordingListener();
+        request.setFailureListener(listener);
+        GattFuture future = new GattFuture();
+        request.setFuture(future);
+
+        ProcessQueueExecutor.finishProcess(null, request, new byte[]{1}, BluetoothGatt.GATT_SUCCESS);
+
+        assertNull(listener.failed);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, future.getStatus());
+    }
+}
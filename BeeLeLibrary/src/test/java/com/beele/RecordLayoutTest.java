@@ -0,0 +1,83 @@
+package com.beele;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordLayoutTest {
+
+    // Temperature Measurement: flags, temperature, and a type announced by flag bit 2.
+    private final RecordLayout layout = new RecordLayout()
+            .add(GattCodec.FORMAT_UINT8, "flags")
+            .add(GattCodec.FORMAT_FLOAT, "temperature")
+            .add(GattCodec.FORMAT_UINT8, "type", 0, 0x04);
+    private final int flags = layout.indexOf("flags");
+    private final int temperature = layout.indexOf("temperature");
+    private final int type = layout.indexOf("type");
+
+    private static ByteBuffer wrap(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(i, (byte) bytes[i]);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void decodesOptionalFieldWhenFlagIsSet() {
+        RecordLayout.Record record = layout.newRecord();
+        // 36.5 as FLOAT: mantissa 365, exponent -1.
+        assertTrue(layout.decode(wrap(0x04, 0x6D, 0x01, 0x00, 0xFF, 0x02), 0, 6, record));
+        assertEquals(0x04, record.getInt(flags));
+        assertEquals(36.5, record.getDouble(temperature), 1e-9);
+        assertTrue(record.isPresent(type));
+        assertEquals(2, record.getInt(type));
+    }
+
+    @Test
+    public void skipsOptionalFieldWhenFlagIsClear() {
+        RecordLayout.Record record = layout.newRecord();
+        assertTrue(layout.decode(wrap(0x00, 0x6D, 0x01, 0x00, 0xFF), 0, 5, record));
+        assertTrue(record.isPresent(temperature));
+        assertFalse(record.isPresent(type));
+    }
+
+    @Test
+    public void missingFlagsDoNotReuseThePreviousValue() {
+        RecordLayout.Record record = layout.newRecord();
+        assertTrue(layout.decode(wrap(0x04, 0x6D, 0x01, 0x00, 0xFF, 0x02), 0, 6, record));
+
+        assertFalse(layout.decode(wrap(), 0, 0, record));
+        for (int field = 0; field < layout.getFieldCount(); field++) {
+            assertFalse(record.isPresent(field));
+            assertEquals(0, record.getLong(field));
+            assertEquals(0, record.getDouble(field), 0);
+        }
+    }
+
+    @Test
+    public void shortValueIsIncomplete() {
+        RecordLayout.Record record = layout.newRecord();
+        // The flags announce a type the value is too short for.
+        assertFalse(layout.decode(wrap(0x04, 0x6D, 0x01, 0x00, 0xFF), 0, 5, record));
+        assertTrue(record.isPresent(temperature));
+        assertFalse(record.isPresent(type));
+    }
+
+    @Test
+    public void encodeRoundTrips() {
+        RecordLayout.Record record = layout.newRecord();
+        record.setLong(flags, 0x04).setDouble(temperature, 36.5).setLong(type, 2);
+        ByteBuffer buffer = ByteBuffer.allocate(layout.getEncodedLength(record));
+        assertEquals(6, layout.encode(buffer, 0, record));
+
+        RecordLayout.Record decoded = layout.newRecord();
+        assertTrue(layout.decode(buffer, 0, 6, decoded));
+        assertEquals(36.5, decoded.getDouble(temperature), 1e-9);
+        assertEquals(2, decoded.getInt(type));
+    }
+}
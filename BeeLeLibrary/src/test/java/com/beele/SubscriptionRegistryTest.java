@@ -0,0 +1,60 @@
+package com.beele;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionRegistryTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID CHARACTERISTIC = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+
+    private final SubscriptionRegistry.NotificationHandler handler = new SubscriptionRegistry.NotificationHandler() {
+        @Override
+        public void onNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        }
+    };
+
+    @Test
+    public void listenerStaysSubscribedNextToHandlers() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        assertTrue(registry.setListenerSubscribed(ADDRESS, CHARACTERISTIC, true));
+        // The listener already holds the subscription, the handler only adds a reference.
+        assertFalse(registry.add(ADDRESS, CHARACTERISTIC, handler));
+        assertEquals(1, registry.getReferenceCount(ADDRESS, CHARACTERISTIC));
+        assertTrue(registry.isListenerSubscribed(ADDRESS, CHARACTERISTIC));
+
+        assertFalse(registry.remove(ADDRESS, CHARACTERISTIC, handler));
+        assertTrue(registry.isListenerSubscribed(ADDRESS, CHARACTERISTIC));
+        assertTrue(registry.setListenerSubscribed(ADDRESS, CHARACTERISTIC, false));
+        assertFalse(registry.isListenerSubscribed(ADDRESS, CHARACTERISTIC));
+    }
+
+    @Test
+    public void handlerAloneDoesNotSubscribeTheListener() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        assertTrue(registry.add(ADDRESS, CHARACTERISTIC, handler));
+        assertFalse(registry.isListenerSubscribed(ADDRESS, CHARACTERISTIC));
+        // The handler holds the subscription, enabling the listener does not write the descriptor.
+        assertFalse(registry.setListenerSubscribed(ADDRESS, CHARACTERISTIC, true));
+        assertTrue(registry.isListenerSubscribed(ADDRESS, CHARACTERISTIC));
+        assertEquals(1, registry.getSubscribedCharacteristics(ADDRESS).size());
+    }
+
+    @Test
+    public void clearForgetsListenerSubscriptions() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        registry.add(ADDRESS, CHARACTERISTIC, handler);
+        registry.setListenerSubscribed(ADDRESS, CHARACTERISTIC, true);
+        registry.clear(ADDRESS);
+        assertEquals(0, registry.getReferenceCount(ADDRESS, CHARACTERISTIC));
+        assertFalse(registry.isListenerSubscribed(ADDRESS, CHARACTERISTIC));
+    }
+}
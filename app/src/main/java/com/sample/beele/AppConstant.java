@@ -39,6 +39,8 @@ public final class AppConstant {
     public static final UUID SERVICE_BATTERY_LEVEL = UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb");
     // Characteristic to read the battery status value.
     public static final UUID CHAR_BATTERY_LEVEL = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    // How long a battery level read stays fresh in the CharacteristicCache.
+    public static final long BATTERY_LEVEL_TTL = 60000;
 
     /** TO DETECT THE BLE DEVICE'S BUTTON PRESS EVENT **/
     // To receive the button press event form the Button information service.
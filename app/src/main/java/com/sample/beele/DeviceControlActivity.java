@@ -18,6 +18,10 @@ import android.widget.TextView;
 
 import com.beele.BluetoothLe;
 import com.beele.BluetoothLe.BluetoothLeListener;
+import com.beele.CharacteristicCache;
+import com.beele.GattCodec;
+import com.beele.GattFuture;
+import com.beele.PooledValue;
 
 /**
  * DeviceControlActivity.java
@@ -69,11 +73,17 @@ public class DeviceControlActivity extends Activity implements BluetoothLeListen
         mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothDevice = mBluetoothManager.getAdapter().getRemoteDevice(mDeviceAddress);
         mBluetoothLe = new BluetoothLe(this, mBluetoothManager, this);
+        // The device information never changes, the battery level is good for a minute.
+        mBluetoothLe.getCharacteristicCache().setTimeToLive(AppConstant.CHAR_SERIAL_NUMBER, CharacteristicCache.FOREVER);
+        mBluetoothLe.getCharacteristicCache().setTimeToLive(AppConstant.CHAR_SOFTWARE_REV, CharacteristicCache.FOREVER);
+        mBluetoothLe.getCharacteristicCache().setTimeToLive(AppConstant.CHAR_BATTERY_LEVEL, AppConstant.BATTERY_LEVEL_TTL);
         mBluetoothGatt = mBluetoothLe.connect(mBluetoothDevice, false);
     }
 
     @Override
     protected void onDestroy() {
+        // Disconnects the device and lets the shared threads stop.
+        mBluetoothLe.close();
         super.onDestroy();
     }
 
@@ -124,19 +134,44 @@ public class DeviceControlActivity extends Activity implements BluetoothLeListen
 
                 if (AppConstant.SERVICE_DEVICE_INFO.equals(service.getUuid())) {
                     //Read the device serial number
-                    mBluetoothLe.readCharacteristic(gatt, service.getCharacteristic(AppConstant.CHAR_SERIAL_NUMBER));
+                    //Update the database with received serial number of device.
+                    mBluetoothLe.readCharacteristic(gatt, service.getCharacteristic(AppConstant.CHAR_SERIAL_NUMBER), new GattFuture.Callback() {
+                        @Override
+                        public void onResult(byte[] value, int status) {
+                            if (status == BluetoothGatt.GATT_SUCCESS) {
+                                Log.i(TAG, "serialNo :: " + new String(value));
+                            }
+                        }
+                    });
                     //Read the device software version
-                    mBluetoothLe.readCharacteristic(gatt, service.getCharacteristic(AppConstant.CHAR_SOFTWARE_REV));
+                    //Update the database with received software version.
+                    mBluetoothLe.readCharacteristic(gatt, service.getCharacteristic(AppConstant.CHAR_SOFTWARE_REV), new GattFuture.Callback() {
+                        @Override
+                        public void onResult(byte[] value, int status) {
+                            if (status == BluetoothGatt.GATT_SUCCESS) {
+                                Log.i(TAG, "softwareVersion :: " + new String(value));
+                            }
+                        }
+                    });
                 }
 
                 if (AppConstant.SERVICE_BATTERY_LEVEL.equals(service.getUuid())) {
                     //Read the device battery percentage
-                    mBluetoothLe.readCharacteristic(gatt, service.getCharacteristic(AppConstant.CHAR_BATTERY_LEVEL));
+                    mBluetoothLe.readCharacteristic(gatt, service.getCharacteristic(AppConstant.CHAR_BATTERY_LEVEL), new PooledValue.ValueHandler() {
+                        @Override
+                        public void onValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value) {
+                            if (value.length() > 0) {
+                                int batteryLevel = GattCodec.getUint8(value.buffer(), 0);
+                                updateBatteryStatus(batteryLevel + " %");
+                                Log.i(TAG, "Battery Level :: " + batteryLevel);
+                            }
+                        }
+                    });
                 }
 
                 if (AppConstant.SERVICE_BUTTON_PRESS_SERVICE.equals(service.getUuid())) {
                     // Set notification for key press from BLE Device.
-                    mBluetoothLe.setCharacteristicNotification(gatt, service.getCharacteristic(AppConstant.CHAR_BUTTON_PRESS), true);
+                    mBluetoothLe.setCharacteristicNotification(gatt, service.getCharacteristic(AppConstant.CHAR_BUTTON_PRESS), mButtonPressHandler);
                 }
             }
         }
@@ -153,11 +188,13 @@ public class DeviceControlActivity extends Activity implements BluetoothLeListen
         switch (newState) {
             case BluetoothProfile.STATE_CONNECTED:
                 Log.i(TAG, "Connected");
+                // connect() returns null while the device waits for its turn to connect.
+                mBluetoothGatt = gatt;
                 updateConnectionState(getString(R.string.connected));
                 mConnected = true;
                 invalidateOptionsMenu();
                 //Start the service discovery
-                gatt.discoverServices();
+                mBluetoothLe.discoverServices(gatt);
                 break;
             case BluetoothProfile.STATE_DISCONNECTED:
                 Log.i(TAG, "Disconnected");
@@ -170,11 +207,14 @@ public class DeviceControlActivity extends Activity implements BluetoothLeListen
         }
     }
 
-    @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        Log.i(TAG, "onCharacteristicChanged");
-        if (AppConstant.CHAR_BUTTON_PRESS.equals(characteristic.getUuid())) {
-            int event = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    // Key press notifications of the BLE Device.
+    private PooledValue.ValueHandler mButtonPressHandler = new PooledValue.ValueHandler() {
+        @Override
+        public void onValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, PooledValue value) {
+            if (value.length() == 0) {
+                return;
+            }
+            int event = GattCodec.getUint8(value.buffer(), 0);
             Log.i(TAG, "Button Press Detected:: " + event);
             if(event==0)
                 updateButtonState(getString(R.string.button_pressed));
@@ -182,28 +222,18 @@ public class DeviceControlActivity extends Activity implements BluetoothLeListen
                 updateButtonState(getString(R.string.button_released));
             }
         }
+    };
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        // The key press notification is handled by mButtonPressHandler.
+        Log.i(TAG, "onCharacteristicChanged");
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        Log.i(TAG, "onCharacteristicRead");
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            if (AppConstant.CHAR_BATTERY_LEVEL.equals(characteristic.getUuid())) {
-                int batteryLevel = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                updateBatteryStatus(batteryLevel+" %");
-                Log.i(TAG, "Battery Level :: "+batteryLevel);
-            }
-            //Update the database with received serial number of device.
-            if (AppConstant.CHAR_SERIAL_NUMBER.equals(characteristic.getUuid())) {
-                String serialNo = new String(characteristic.getValue());
-                Log.i(TAG, "serialNo :: "+serialNo);
-            }
-            //Update the database with received software version.
-            if (AppConstant.CHAR_SOFTWARE_REV.equals(characteristic.getUuid())) {
-                String softwareVersion = new String(characteristic.getValue());
-                Log.i(TAG, "softwareVersion :: "+softwareVersion);
-            }
-        }
+        // The reads of this screen are answered by their own GattFuture.Callback.
+        Log.i(TAG, "onCharacteristicRead :: Status:: " + status);
     }
 
     @Override
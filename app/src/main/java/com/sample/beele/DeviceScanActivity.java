@@ -2,7 +2,6 @@ package com.sample.beele;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
@@ -17,10 +16,16 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import com.beele.LeScanFilter;
+import com.beele.ScanAggregator;
+import com.beele.ScanScheduler;
+import com.beele.ScanEntry;
 import com.sample.beele.model.ScannedDevice;
 import com.sample.beele.adapter.ScannedDeviceAdapter;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -29,28 +34,22 @@ public class DeviceScanActivity extends Activity {
 
 
     private static final int REQUEST_ENABLE_BT = 12;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
+    // Drops devices not heard from for 30 seconds.
+    private static final long SCAN_DEVICE_TTL = 30000;
     private boolean mScanning;
     private ScannedDeviceAdapter scannedDeviceAdapter;
     private BluetoothAdapter mBluetoothAdapter;
     private Handler mHandler;
     private ListView scanningDeviceListView;
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-
-        @Override
-        public void onLeScan(final BluetoothDevice device, final int rssi,
-                             final byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    scannedDeviceAdapter.update(device, rssi, scanRecord);
-                    scannedDeviceAdapter.notifyDataSetChanged();
-                }
-            });
-        }
-    };
+    // Device scan callback, merges the advertisements off the main thread and publishes
+    // at most one snapshot per frame to the list.
+    private ScanAggregator mLeScanCallback;
+    // Scans until stopped, duty cycled to save battery.
+    private ScanScheduler mScanScheduler;
+    // Devices to list, advertisements that do not match are dropped on the scan thread.
+    private final LeScanFilter mLeScanFilter = new LeScanFilter();
+    // Counts the clears of the list, snapshots posted before the latest one are dropped.
+    private volatile int mSnapshotGeneration;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -79,9 +78,34 @@ public class DeviceScanActivity extends Activity {
             return;
         }
 
+        mScanScheduler = new ScanScheduler(mBluetoothAdapter);
+        // Scans at least every 20 seconds, so devices in range outlive SCAN_DEVICE_TTL.
+        mScanScheduler.setScanInterval(ScanScheduler.MIN_SCAN_INTERVAL, 20000);
+
         // Initializes list view adapter.
         scannedDeviceAdapter = new ScannedDeviceAdapter(this, R.layout.listitem_device, new ArrayList<ScannedDevice>());
         scanningDeviceListView.setAdapter(scannedDeviceAdapter);
+        mLeScanCallback = new ScanAggregator(new ScanAggregator.SnapshotListener() {
+            @Override
+            public void onSnapshot(List<ScanEntry> entries) {
+                scannedDeviceAdapter.update(entries);
+            }
+        });
+        mLeScanCallback.setTimeToLive(SCAN_DEVICE_TTL);
+        mLeScanCallback.setExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                final int generation = mSnapshotGeneration;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mSnapshotGeneration) {
+                            runnable.run();
+                        }
+                    }
+                });
+            }
+        });
 
         // Scanned Device item click listener
         scanningDeviceListView.setOnItemClickListener(new OnItemClickListener() {
@@ -93,7 +117,7 @@ public class DeviceScanActivity extends Activity {
                     intent.putExtra(AppConstant.EXTRAS_DEVICE_NAME, item.getDisplayName());
                     intent.putExtra(AppConstant.EXTRAS_DEVICE_ADDRESS, item.getDeviceMac());
                     if (mScanning) {
-                        mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                        mScanScheduler.stop();
                         mScanning = false;
                     }
                     startActivity(intent);
@@ -124,7 +148,7 @@ public class DeviceScanActivity extends Activity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                scannedDeviceAdapter.clear();
+                clearDevices();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -168,26 +192,34 @@ public class DeviceScanActivity extends Activity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        clearDevices();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mScanScheduler != null) {
+            mScanScheduler.close();
+        }
+        if (mLeScanCallback != null) {
+            mLeScanCallback.close();
+        }
+        super.onDestroy();
+    }
+
+    // Main thread only.
+    private void clearDevices() {
+        mSnapshotGeneration++;
+        mLeScanCallback.clear();
         scannedDeviceAdapter.clear();
     }
 
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
             mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mScanScheduler.start(mLeScanFilter, mLeScanCallback);
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanScheduler.stop();
         }
         invalidateOptionsMenu();
     }
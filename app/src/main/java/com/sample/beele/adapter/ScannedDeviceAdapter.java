@@ -1,6 +1,5 @@
 package com.sample.beele.adapter;
 
-import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -8,10 +7,14 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
+import com.beele.AdvertisingData;
+import com.beele.ScanEntry;
 import com.sample.beele.R;
 import com.sample.beele.model.ScannedDevice;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * ScannedDeviceAdapter.java
@@ -20,6 +23,9 @@ import java.util.List;
  */
 public class ScannedDeviceAdapter extends ArrayAdapter<ScannedDevice> {
     private List<ScannedDevice> list;
+    // The devices of the list by address.
+    private Map<String, ScannedDevice> devicesByAddress = new HashMap<String, ScannedDevice>();
+    private AdvertisingData advertisingData = new AdvertisingData();
     private LayoutInflater inflater;
     private int resId;
 
@@ -49,27 +55,40 @@ public class ScannedDeviceAdapter extends ArrayAdapter<ScannedDevice> {
     }
 
     /**
-     * add or update BluetoothDevice
+     * Applies a snapshot of the ScanAggregator and refreshes the list view once. Devices
+     * already in the list keep their item, looked up by address.
      */
-    public void update(BluetoothDevice newDevice, int rssi, byte[] scanRecord) {
-        if ((newDevice == null) || (newDevice.getAddress() == null)) {
-            return;
-        }
-
-        boolean contains = false;
-        for (ScannedDevice device : list) {
-            if (newDevice.getAddress().equals(device.getDevice().getAddress())) {
-                contains = true;
-                device.setRssi(rssi); // update
-                break;
+    public void update(List<ScanEntry> entries) {
+        list.clear();
+        for (ScanEntry entry : entries) {
+            ScannedDevice device = devicesByAddress.get(entry.getAddress());
+            if (device == null) {
+                device = new ScannedDevice(entry.getDevice(), (int) Math.round(entry.getFilteredRssi()));
+                if (entry.getDevice().getName() == null
+                        && advertisingData.wrap(entry.getScanRecord()).hasLocalName()) {
+                    // Not in the name cache of the system yet, take it from the advertisement.
+                    device.setDisplayName(advertisingData.getLocalName());
+                }
+                devicesByAddress.put(entry.getAddress(), device);
+            } else {
+                device.setRssi((int) Math.round(entry.getFilteredRssi()));
             }
+            list.add(device);
         }
-
-        if (!contains) {
-            // add new BluetoothDevice into the adapter.
-            list.add(new ScannedDevice(newDevice, rssi));
+        if (devicesByAddress.size() > list.size()) {
+            // The aggregator forgot some devices.
+            devicesByAddress.clear();
+            for (ScannedDevice device : list) {
+                devicesByAddress.put(device.getDeviceMac(), device);
+            }
         }
         // Refresh the list view.
         notifyDataSetChanged();
     }
+
+    @Override
+    public void clear() {
+        devicesByAddress.clear();
+        super.clear();
+    }
 }